@@ -0,0 +1,47 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.kohsuke.stapler.openid.server.Fixtures;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.ParameterList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the attribute getters of {@link OpenIDIdentity}, the way a page template calls them.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OpenIDIdentityBenchmark {
+    private OpenIDIdentity identity;
+
+    @Setup
+    public void setUp() throws Exception {
+        // what the RP sees: the assertion re-parsed from the request parameters
+        AuthSuccess signed = Fixtures.positiveAssertion(Fixtures.createServer());
+        identity = new OpenIDIdentity(AuthSuccess.createAuthSuccess(new ParameterList(signed.getParameterMap())));
+    }
+
+    @Benchmark
+    public void allGetters(Blackhole bh) {
+        bh.consume(identity.getNick());
+        bh.consume(identity.getEmail());
+        bh.consume(identity.getFirstName());
+        bh.consume(identity.getLastName());
+    }
+
+    @Benchmark
+    public String getEmail() {
+        return identity.getEmail();
+    }
+}
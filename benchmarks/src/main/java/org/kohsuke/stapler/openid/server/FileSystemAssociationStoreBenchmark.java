@@ -0,0 +1,75 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.apache.commons.io.FileUtils;
+import org.openid4java.association.Association;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FileSystemAssociationStore} operations against stores of different sizes.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileSystemAssociationStoreBenchmark {
+    /**
+     * Number of associations in the store before the measurement starts.
+     */
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private File dir;
+    private FileSystemAssociationStore store;
+    private String[] handles;
+    private final Random random = new Random(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = File.createTempFile("openid", "store");
+        dir.delete();
+        dir.mkdirs();
+        store = new FileSystemAssociationStore(dir);
+        handles = new String[size];
+        for (int i=0; i<size; i++)
+            handles[i] = store.generate(Association.TYPE_HMAC_SHA1, 3600).getHandle();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public Association load() {
+        return store.load(handles[random.nextInt(size)]);
+    }
+
+    @Benchmark
+    public Association loadUnknown() {
+        return store.load("0123456789ABCDEF");
+    }
+
+    /**
+     * Generates and then removes an association, so that the store size stays constant.
+     */
+    @Benchmark
+    public Association generateAndRemove() throws Exception {
+        Association a = store.generate(Association.TYPE_HMAC_SHA256, 3600);
+        store.remove(a.getHandle());
+        return a;
+    }
+}
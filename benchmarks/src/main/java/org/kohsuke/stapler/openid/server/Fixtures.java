@@ -0,0 +1,190 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.openid4java.association.AssociationSessionType;
+import org.openid4java.association.DiffieHellmanSession;
+import org.openid4java.message.AssociationRequest;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegResponse;
+
+import javax.servlet.ServletOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server, session and request fixtures shared by the benchmarks.
+ *
+ * <p>
+ * Stapler requests and responses are mocked with dynamic proxies that only implement
+ * what the code under measurement actually calls.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class Fixtures {
+    public static final String ADDRESS = "http://op.example.com/";
+    public static final String RETURN_TO = "http://rp.example.org/openid/finishLogin?from=%2Fjob%2Ffoo%2F";
+    public static final String REALM = "http://rp.example.org/";
+
+    /**
+     * {@link OpenIDServer} whose users are always logged in.
+     */
+    public static OpenIDServer createServer() throws Exception {
+        return new OpenIDServer(new URL(ADDRESS)) {
+            @Override
+            protected Session createSession() {
+                return Fixtures.createSession(this);
+            }
+        };
+    }
+
+    public static Session createSession(OpenIDServer server) {
+        return new Session(server) {
+            @Override
+            protected HttpResponse authenticateUser(OpenIDIdentity id) {
+                id.withNick("kohsuke").withEmail("kk@example.com")
+                  .withFirstName("Kohsuke").withLastName("Kawaguchi").withFullName("Kohsuke Kawaguchi");
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Parameters of a DH-SHA1 "associate" request, as sent by a typical RP.
+     */
+    public static Map<String,String> associate() throws Exception {
+        AssociationSessionType type = AssociationSessionType.DH_SHA1;
+        DiffieHellmanSession dh = DiffieHellmanSession.create(type,
+                DiffieHellmanSession.DEFAULT_MODULUS_BASE64, DiffieHellmanSession.DEFAULT_GENERATOR_BASE64);
+        return toStringMap(AssociationRequest.createAssociationRequest(type, dh));
+    }
+
+    /**
+     * Parameters of a stateless "checkid_setup" request with SReg and AX fetch requests,
+     * modeled after what the client side of this library and Jenkins send.
+     */
+    public static Map<String,String[]> checkidSetup() {
+        Map<String,String[]> m = new LinkedHashMap<String,String[]>();
+        put(m, "openid.ns", "http://specs.openid.net/auth/2.0");
+        put(m, "openid.mode", "checkid_setup");
+        put(m, "openid.claimed_id", "http://specs.openid.net/auth/2.0/identifier_select");
+        put(m, "openid.identity", "http://specs.openid.net/auth/2.0/identifier_select");
+        put(m, "openid.return_to", RETURN_TO);
+        put(m, "openid.realm", REALM);
+
+        put(m, "openid.ns.sreg", "http://openid.net/extensions/sreg/1.1");
+        put(m, "openid.sreg.required", "nickname");
+        put(m, "openid.sreg.optional", "fullname,email");
+
+        put(m, "openid.ns.ax", "http://openid.net/srv/ax/1.0");
+        put(m, "openid.ax.mode", "fetch_request");
+        put(m, "openid.ax.type.email", "http://schema.openid.net/contact/email");
+        put(m, "openid.ax.type.ff", "http://axschema.org/namePerson/first");
+        put(m, "openid.ax.type.ll", "http://axschema.org/namePerson/last");
+        put(m, "openid.ax.required", "email,ff,ll");
+        return m;
+    }
+
+    /**
+     * Signs a positive assertion with a fresh private association and turns it into
+     * the "check_authentication" request that a stateless RP would send back.
+     * Each such request can only be verified once.
+     */
+    public static Map<String,String> checkAuthentication(OpenIDServer server) throws Exception {
+        AuthSuccess rsp = positiveAssertion(server);
+        Map<String,String> m = toStringMap(rsp);
+        m.put("openid.mode", "check_authentication");
+        return m;
+    }
+
+    /**
+     * Signed positive assertion carrying SReg and AX responses.
+     */
+    public static AuthSuccess positiveAssertion(OpenIDServer server) throws Exception {
+        String openId = ADDRESS+"~kohsuke";
+        Message rsp = server.manager.authResponse(new ParameterList(checkidSetup()), openId, openId, true);
+
+        SRegResponse sreg = SRegResponse.createFetchResponse();
+        sreg.addAttribute("nickname", "kohsuke");
+        sreg.addAttribute("email", "kk@example.com");
+        rsp.addExtension(sreg);
+
+        FetchResponse ax = FetchResponse.createFetchResponse();
+        ax.addAttribute("email", "http://schema.openid.net/contact/email", "kk@example.com");
+        ax.addAttribute("ff", "http://axschema.org/namePerson/first", "Kohsuke");
+        ax.addAttribute("ll", "http://axschema.org/namePerson/last", "Kawaguchi");
+        rsp.addExtension(ax);
+
+        server.manager.sign((AuthSuccess)rsp);
+        return (AuthSuccess)rsp;
+    }
+
+    public static StaplerRequest request(final Map<String,?> parameters) {
+        return (StaplerRequest)Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[]{StaplerRequest.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getParameterMap"))
+                        return parameters;
+                    return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    /**
+     * Response that discards everything written to it.
+     */
+    public static StaplerResponse response() {
+        final PrintWriter w = new PrintWriter(NULL);
+        final ServletOutputStream os = new ServletOutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        };
+        return (StaplerResponse)Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[]{StaplerResponse.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getWriter"))
+                        return w;
+                    if (method.getName().equals("getOutputStream"))
+                        return os;
+                    if (method.getName().equals("getCharacterEncoding"))
+                        return "UTF-8";
+                    return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    private static Object defaultValue(Class<?> t) {
+        if (t==boolean.class)   return false;
+        if (t==int.class)       return 0;
+        if (t==long.class)      return 0L;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,String> toStringMap(Message msg) {
+        return new LinkedHashMap<String,String>(msg.getParameterMap());
+    }
+
+    private static void put(Map<String,String[]> m, String key, String value) {
+        m.put(key, new String[]{value});
+    }
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {}
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+}
@@ -0,0 +1,48 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.kohsuke.stapler.StaplerResponse;
+import org.openid4java.message.Message;
+import org.openid4java.message.ParameterList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MessageResponse#generateResponse} for the direct responses a provider sends.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageResponseBenchmark {
+    private MessageResponse associate;
+    private MessageResponse checkAuthentication;
+    private StaplerResponse rsp;
+
+    @Setup
+    public void setUp() throws Exception {
+        OpenIDServer server = Fixtures.createServer();
+        Message a = server.manager.associationResponse(new ParameterList(Fixtures.associate()));
+        Message v = server.manager.verify(new ParameterList(Fixtures.checkAuthentication(server)));
+        associate = new MessageResponse(a);
+        checkAuthentication = new MessageResponse(v);
+        rsp = Fixtures.response();
+    }
+
+    @Benchmark
+    public void associate() throws Exception {
+        associate.generateResponse(null, rsp, null);
+    }
+
+    @Benchmark
+    public void checkAuthentication() throws Exception {
+        checkAuthentication.generateResponse(null, rsp, null);
+    }
+}
@@ -0,0 +1,79 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.openid4java.server.InMemoryServerAssociationStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Session#doEntryPoint(StaplerRequest)}, and thus {@link Session#handleRequest()},
+ * for each of the OpenID modes a provider serves.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionBenchmark {
+    private OpenIDServer server;
+    private Session session;
+
+    private StaplerRequest associate;
+    private StaplerRequest checkidSetup;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = Fixtures.createServer();
+        session = Fixtures.createSession(server);
+        associate = Fixtures.request(Fixtures.associate());
+        checkidSetup = Fixtures.request(Fixtures.checkidSetup());
+    }
+
+    /**
+     * Every "associate" and "checkid_setup" leaves an association behind in the in-memory stores,
+     * so start each iteration with empty ones, or later iterations would measure a bigger and bigger map.
+     */
+    @Setup(Level.Iteration)
+    public void resetStores() {
+        server.setAssociationStores(new InMemoryServerAssociationStore(), new InMemoryServerAssociationStore());
+    }
+
+    /**
+     * Private associations are discarded once verified, so every check_authentication needs a freshly signed assertion.
+     * This is kept apart from {@link SessionBenchmark} so that only {@link SessionBenchmark#checkAuthentication(Assertion)}
+     * pays for the per-invocation setup.
+     */
+    @State(Scope.Thread)
+    public static class Assertion {
+        StaplerRequest checkAuthentication;
+
+        @Setup(Level.Invocation)
+        public void sign(SessionBenchmark b) throws Exception {
+            checkAuthentication = Fixtures.request(Fixtures.checkAuthentication(b.server));
+        }
+    }
+
+    @Benchmark
+    public HttpResponse associate() throws Exception {
+        return session.doEntryPoint(associate);
+    }
+
+    @Benchmark
+    public HttpResponse checkidSetup() throws Exception {
+        return session.doEntryPoint(checkidSetup);
+    }
+
+    @Benchmark
+    public HttpResponse checkAuthentication(Assertion a) throws Exception {
+        return session.doEntryPoint(a.checkAuthentication);
+    }
+}
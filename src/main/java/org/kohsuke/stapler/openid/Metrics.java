@@ -0,0 +1,440 @@
+package org.kohsuke.stapler.openid;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms of the OpenID provider and consumer, exposed over JMX
+ * (see {@link #register()} and {@link #unregister()}) and to {@link Listener}s.
+ *
+ * <p>
+ * Recording an event only updates atomic counters and doesn't allocate, so this is always on.
+ * Typical use is:
+ * <pre>
+ * long start = System.nanoTime();
+ * try {
+ *     ...
+ * } finally {
+ *     Metrics.INSTANCE.record(Event.CONSUMER_DISCOVERY, start);
+ * }
+ * </pre>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Metrics implements DynamicMBean {
+    /**
+     * Things we measure. Timed events have the latency histogram, others are just counted.
+     */
+    public enum Event {
+        /**
+         * Provider: "associate" requests.
+         */
+        PROVIDER_ASSOCIATE(true),
+        /**
+         * Provider: "checkid_setup" and "checkid_immediate" requests.
+         */
+        PROVIDER_CHECKID(true),
+        /**
+         * Provider: "check_authentication" requests.
+         */
+        PROVIDER_CHECK_AUTHENTICATION(true),
+        /**
+         * Provider: requests in an unrecognized mode.
+         */
+        PROVIDER_UNKNOWN(true),
+
+        /**
+         * Provider association store: creating a new association.
+         */
+        ASSOCIATION_GENERATE(true),
+        /**
+         * Provider association store: looking up an association.
+         */
+        ASSOCIATION_LOAD(true),
+        ASSOCIATION_HIT(false),
+        ASSOCIATION_MISS(false),
+        /**
+         * The association was found but it has already expired.
+         */
+        ASSOCIATION_EXPIRED(false),
+
+        /**
+         * Consumer: discovering the OpenID provider of a claimed identifier.
+         */
+        CONSUMER_DISCOVERY(true),
+        /**
+         * Consumer: establishing an association with the OpenID provider.
+         */
+        CONSUMER_ASSOCIATE(true),
+        /**
+         * Consumer: verifying the authentication response, which might involve a direct request to the provider.
+         */
+        CONSUMER_VERIFY(true);
+
+        public final boolean timed;
+
+        Event(boolean timed) {
+            this.timed = timed;
+        }
+    }
+
+    /**
+     * Causes of failures.
+     */
+    public enum Failure {
+        /**
+         * Malformed or otherwise unacceptable protocol message.
+         */
+        MESSAGE,
+        /**
+         * Missing, expired, or unusable association.
+         */
+        ASSOCIATION,
+        /**
+         * The OpenID provider couldn't be discovered or reached.
+         */
+        DISCOVERY,
+        /**
+         * The other side didn't respond in time.
+         */
+        TIMEOUT,
+        /**
+         * Turned down right away because too many requests were already in progress.
+         */
+        REJECTED,
+        /**
+         * The authentication response didn't verify.
+         */
+        VERIFICATION,
+        /**
+         * Anything else.
+         */
+        OTHER
+    }
+
+    /**
+     * Receives every event as it's recorded, for example to feed a metrics system other than JMX.
+     * Called synchronously on the thread that recorded the event, so implementations need to be quick and thread-safe.
+     */
+    public interface Listener {
+        /**
+         * @param nanos
+         *      Latency of a {@linkplain Event#timed timed} event, or 0.
+         */
+        void onEvent(Event event, long nanos);
+
+        void onFailure(Event event, Failure cause);
+    }
+
+    private final Timer[] timers = new Timer[Event.values().length];
+    private final AtomicLongArray failures = new AtomicLongArray(Failure.values().length);
+
+    /**
+     * Copy on write, so that recording an event doesn't need an iterator.
+     */
+    private volatile Listener[] listeners = new Listener[0];
+
+    /**
+     * Number of outstanding {@link #register()} calls, and the name registered as. Guarded by this object.
+     */
+    private int owners;
+    private ObjectName registeredAs;
+
+    private Metrics() {
+        for (int i=0; i<timers.length; i++)
+            timers[i] = new Timer();
+    }
+
+    /**
+     * Records a timed event that started at the given {@link System#nanoTime()}.
+     */
+    public void record(Event e, long startNanos) {
+        long d = System.nanoTime()-startNanos;
+        timers[e.ordinal()].add(d);
+        for (Listener l : listeners)
+            l.onEvent(e, d);
+    }
+
+    /**
+     * Records an event that's not timed.
+     */
+    public void count(Event e) {
+        timers[e.ordinal()].count.incrementAndGet();
+        for (Listener l : listeners)
+            l.onEvent(e, 0);
+    }
+
+    public void failure(Event e, Failure cause) {
+        failures.incrementAndGet(cause.ordinal());
+        for (Listener l : listeners)
+            l.onFailure(e, cause);
+    }
+
+    public synchronized void addListener(Listener l) {
+        Listener[] a = new Listener[listeners.length+1];
+        System.arraycopy(listeners, 0, a, 0, listeners.length);
+        a[listeners.length] = l;
+        listeners = a;
+    }
+
+    public synchronized void removeListener(Listener l) {
+        List<Listener> a = new ArrayList<Listener>();
+        for (Listener x : listeners)
+            if (x!=l)   a.add(x);
+        listeners = a.toArray(new Listener[a.size()]);
+    }
+
+    public long getCount(Event e) {
+        return timers[e.ordinal()].count.get();
+    }
+
+    public long getFailureCount(Failure f) {
+        return failures.get(f.ordinal());
+    }
+
+    /**
+     * Average latency of the event in microseconds.
+     */
+    public long getMeanMicros(Event e) {
+        Timer t = timers[e.ordinal()];
+        long n = t.count.get();
+        return n==0 ? 0 : t.total.get()/n/1000;
+    }
+
+    public long getMaxMicros(Event e) {
+        return timers[e.ordinal()].max.get()/1000;
+    }
+
+    /**
+     * Latency of the event at the given percentile (such as 0.99) in microseconds.
+     * Since the histogram has power-of-two buckets, this is an upper bound within a factor of 2.
+     */
+    public long getPercentileMicros(Event e, double p) {
+        return timers[e.ordinal()].percentile(p);
+    }
+
+    /**
+     * Resets all the counters.
+     */
+    public void reset() {
+        for (Timer t : timers)
+            t.reset();
+        for (int i=0; i<failures.length(); i++)
+            failures.set(i, 0);
+    }
+
+    /**
+     * Registers this object to the platform MBean server, if it's not registered yet.
+     *
+     * <p>
+     * Each call needs to be paired with {@link #unregister()}, and the object stays registered until the last owner
+     * unregisters. It's registered as {@link #OBJECT_NAME}, or if another copy of this library in the same JVM
+     * (such as another web application in the same container) has taken that name, with an additional
+     * "instance" key like {@code org.kohsuke.stapler.openid:type=Metrics,instance=1}.
+     *
+     * @return
+     *      false if the registration failed, for example because JMX is restricted in this environment.
+     */
+    public synchronized boolean register() {
+        if (owners++>0)
+            return registeredAs!=null;
+        try {
+            MBeanServer s = ManagementFactory.getPlatformMBeanServer();
+            ObjectName n = new ObjectName(OBJECT_NAME);
+            for (int i=1; ; i++) {
+                try {
+                    s.registerMBean(this, n);
+                    registeredAs = n;
+                    return true;
+                } catch (InstanceAlreadyExistsException e) {
+                    n = new ObjectName(OBJECT_NAME+",instance="+i);
+                }
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register "+OBJECT_NAME, e);
+            return false;
+        } catch (SecurityException e) {
+            LOGGER.log(Level.WARNING, "Failed to register "+OBJECT_NAME, e);
+            return false;
+        }
+    }
+
+    /**
+     * Called by each owner that has called {@link #register()} when it shuts down. When the last one does,
+     * this object is removed from the platform MBean server, so that it doesn't keep the class loader
+     * of the application alive. The counters keep working.
+     */
+    public synchronized void unregister() {
+        if (owners==0 || --owners>0)
+            return;
+        ObjectName n = registeredAs;
+        registeredAs = null;
+        if (n==null)    return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(n);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to unregister "+n, e);
+        } catch (SecurityException e) {
+            LOGGER.log(Level.WARNING, "Failed to unregister "+n, e);
+        }
+    }
+
+    /**
+     * The name this object is registered as, or null if it's not registered.
+     */
+    public synchronized ObjectName getObjectName() {
+        return registeredAs;
+    }
+
+    /*
+     * DynamicMBean. Attributes are "<event>.count", "<event>.meanMicros", "<event>.p99Micros",
+     * "<event>.maxMicros" for each timed event, "<event>.count" for others, and "failures.<cause>".
+     */
+
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        int idx = name.lastIndexOf('.');
+        if (idx>0) {
+            String head = name.substring(0,idx), tail = name.substring(idx+1);
+            try {
+                if (head.equals("failures"))
+                    return getFailureCount(Failure.valueOf(tail));
+                Event e = Event.valueOf(head);
+                if (tail.equals("count"))       return getCount(e);
+                if (e.timed) {
+                    if (tail.equals("meanMicros"))  return getMeanMicros(e);
+                    if (tail.equals("p99Micros"))   return getPercentileMicros(e, 0.99);
+                    if (tail.equals("maxMicros"))   return getMaxMicros(e);
+                }
+            } catch (IllegalArgumentException x) {
+                // fall through
+            }
+        }
+        throw new AttributeNotFoundException(name);
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        AttributeList r = new AttributeList();
+        for (String n : names) {
+            try {
+                r.add(new Attribute(n, getAttribute(n)));
+            } catch (AttributeNotFoundException e) {
+                // skip, as the contract says
+            }
+        }
+        return r;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName()+" is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature) {
+        if (action.equals("reset") && (params==null || params.length==0)) {
+            reset();
+            return null;
+        }
+        throw new UnsupportedOperationException(action);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (Event e : Event.values()) {
+            attr(attrs, e+".count", "Number of "+e+" events");
+            if (e.timed) {
+                attr(attrs, e+".meanMicros", "Mean latency of "+e+" in microseconds");
+                attr(attrs, e+".p99Micros", "99th percentile latency of "+e+" in microseconds");
+                attr(attrs, e+".maxMicros", "Maximum latency of "+e+" in microseconds");
+            }
+        }
+        for (Failure f : Failure.values())
+            attr(attrs, "failures."+f, "Number of failures caused by "+f);
+
+        return new MBeanInfo(getClass().getName(), "OpenID provider and consumer metrics",
+                attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null,
+                new MBeanOperationInfo[] {
+                    new MBeanOperationInfo("reset", "Resets all the counters", null, "void", MBeanOperationInfo.ACTION)
+                }, null);
+    }
+
+    private static void attr(List<MBeanAttributeInfo> attrs, String name, String description) {
+        attrs.add(new MBeanAttributeInfo(name, "long", description, true, false, false));
+    }
+
+    /**
+     * Count, total, max, and a histogram of latencies in power-of-two microsecond buckets.
+     */
+    private static final class Timer {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+        /**
+         * i-th bucket counts latencies below 2^i microseconds (and at or above 2^(i-1).)
+         */
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void add(long nanos) {
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long m;
+            while (nanos>(m=max.get()) && !max.compareAndSet(m,nanos))
+                ;
+            long micros = nanos/1000;
+            histogram.incrementAndGet(Math.min(BUCKETS-1, 64-Long.numberOfLeadingZeros(micros)));
+        }
+
+        long percentile(double p) {
+            long n = 0;
+            for (int i=0; i<BUCKETS; i++)
+                n += histogram.get(i);
+            if (n==0)   return 0;
+
+            long threshold = (long)Math.ceil(n*p);
+            long sum = 0;
+            for (int i=0; i<BUCKETS; i++) {
+                sum += histogram.get(i);
+                if (sum>=threshold)
+                    return 1L<<i;
+            }
+            return 1L<<(BUCKETS-1);
+        }
+
+        void reset() {
+            count.set(0);
+            total.set(0);
+            max.set(0);
+            for (int i=0; i<BUCKETS; i++)
+                histogram.set(i, 0);
+        }
+
+        private static final int BUCKETS = 40;
+    }
+
+    /**
+     * The instance that all the code in this library records to.
+     */
+    public static final Metrics INSTANCE = new Metrics();
+
+    public static final String OBJECT_NAME = "org.kohsuke.stapler.openid:type=Metrics";
+
+    private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+}
@@ -5,13 +5,19 @@ import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerFallback;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.openid.Metrics;
+import org.kohsuke.stapler.openid.Metrics.Event;
+import org.kohsuke.stapler.openid.Metrics.Failure;
 import org.openid4java.OpenIDException;
 import org.openid4java.consumer.ConsumerException;
 import org.openid4java.consumer.ConsumerManager;
-import org.openid4java.consumer.InMemoryConsumerAssociationStore;
-import org.openid4java.consumer.InMemoryNonceVerifier;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Protects the delegated URL-bound object via OpenID.
@@ -24,15 +30,51 @@ import java.io.IOException;
  */
 public abstract class AuthenticationShell implements StaplerFallback {
     private final ConsumerManager manager;
+    private final DiscoveryCache discoveries;
     private final Object delegate;
     public final AttributeKey<OpenIDIdentity> key = AttributeKey.sessionScoped();
+    private final AtomicBoolean shutdown = new AtomicBoolean();
 
+    /**
+     * Uses the {@link ConsumerManager} {@linkplain ConsumerManagerFactory#getShared() shared} by all the shells.
+     */
     public AuthenticationShell(Object delegate) throws ConsumerException {
+        this(delegate, ConsumerManagerFactory.DEFAULT.getShared());
+    }
+
+    /**
+     * @param manager
+     *      Typically created by {@link ConsumerManagerFactory}. It can be shared with other shells.
+     */
+    public AuthenticationShell(Object delegate, ConsumerManager manager) {
         this.delegate = delegate;
+        this.manager = manager;
+
+        discoveries = new DiscoveryCache(manager).registerUnique(getDiscoveryCacheKey());
+        Metrics.INSTANCE.register();
+
+        String id = getDefaultClaimedIdentity();
+        if (id!=null)
+            discoveries.prefetch(id);
+    }
+
+    /**
+     * Releases the resources held outside this object, namely the registration of {@link Metrics} and
+     * of the {@link DiscoveryCache}. Call this when the application shuts down, so that its class loader
+     * can be garbage collected. Calling it more than once has no further effect.
+     */
+    public void shutdown() {
+        if (shutdown.compareAndSet(false,true)) {
+            discoveries.unregister();
+            Metrics.INSTANCE.unregister();
+        }
+    }
 
-        manager = new ConsumerManager();
-        manager.setAssociations(new InMemoryConsumerAssociationStore());
-        manager.setNonceVerifier(new InMemoryNonceVerifier(5000));
+    /**
+     * Discovery results shared by all the sessions of this shell.
+     */
+    public DiscoveryCache getDiscoveryCache() {
+        return discoveries;
     }
 
     public Object getStaplerFallback() {
@@ -58,16 +100,54 @@ public abstract class AuthenticationShell implements StaplerFallback {
         OpenIDSession o = OpenIDSession.KEY.get(req);
         if (o==null)
             try {
-                OpenIDSession.KEY.set(req, o = new OpenIDSession(manager,
+                OpenIDSession.KEY.set(req, o = new OpenIDSession(discoveries,
                         getClaimedIdentity(req), req.findAncestor(this).getUrl()+"/openid/"));
             } catch (OpenIDException e) {
                 throw HttpResponses.error(e);
-            } catch (IOException e) {
-                throw HttpResponses.error(e);
+            } catch (TimeoutException e) {
+                Metrics.INSTANCE.failure(Event.CONSUMER_DISCOVERY, Failure.TIMEOUT);
+                throw serviceUnavailable(e, "OpenID provider is not responding. Please try again later.");
             }
         return o;
     }
 
+    /**
+     * 503 with {@link #RETRY_AFTER}, for failures where nothing has been consumed yet and so the browser can just retry.
+     */
+    static HttpResponses.HttpResponseException serviceUnavailable(Throwable cause, final String message) {
+        return new HttpResponses.HttpResponseException(cause) {
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                rsp.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+                rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+            }
+        };
+    }
+
+    /**
+     * Name under which the {@link DiscoveryCache} of this shell is registered, so that {@link OpenIDSession}s
+     * deserialized on another node find it. If there are multiple shells with the same name,
+     * they get "name#1", "name#2" and so on in the order they are created, so override this
+     * to return a distinct name for each, if the order can differ between the nodes.
+     *
+     * <p>
+     * This method is called from the constructor, so it must not depend on the state of the subtype.
+     */
+    protected String getDiscoveryCacheKey() {
+        return getClass().getName();
+    }
+
+    /**
+     * If {@link #getClaimedIdentity(StaplerRequest)} returns a constant, return that constant from here,
+     * so that the discovery of the OpenID provider can start when this shell is created,
+     * ahead of the first request.
+     *
+     * <p>
+     * This method is called from the constructor, so it must not depend on the state of the subtype.
+     */
+    protected String getDefaultClaimedIdentity() {
+        return null;
+    }
+
     /**
      * Returns the OpenID that our user is claiming (that we are going to validate.)
      * In the typical context where this is used, this normally returns a constant
@@ -75,4 +155,10 @@ public abstract class AuthenticationShell implements StaplerFallback {
      * that allows the user to select the actual identifier in the server.)
      */
     protected abstract String getClaimedIdentity(StaplerRequest request);
+
+    /**
+     * Seconds the browser is told to wait before retrying when the discovery of the OpenID provider times out,
+     * or when too many verifications are already in progress.
+     */
+    public static int RETRY_AFTER = 5;
 }
@@ -0,0 +1,198 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.openid4java.consumer.NonceVerifier;
+import org.openid4java.util.InternetDateFormat;
+
+import java.text.ParseException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link NonceVerifier} that scales to high login rates.
+ *
+ * <p>
+ * Nonces are grouped into buckets by their timestamp. Once all the nonces in a bucket become
+ * too old to be accepted anyway, the whole bucket is dropped at once, so expiration costs
+ * nothing per nonce. Within a bucket, nonces are spread across independently locked stripes,
+ * so concurrent logins rarely contend.
+ *
+ * <p>
+ * The number of remembered nonces is capped. When the cap is reached, new nonces are rejected
+ * (reported as {@link #SEEN}) until old buckets expire, since accepting them without remembering
+ * them would open the door to replay attacks.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class BucketedNonceVerifier implements NonceVerifier {
+    private volatile int maxAgeSeconds;
+    private final long bucketWidth;
+    private final int maxEntries;
+
+    /**
+     * Ring of buckets, indexed by the bucket number modulo its length. Covers timestamps
+     * from {@code maxAge} in the past to {@code maxAge} in the future (to tolerate clock skew.)
+     */
+    private volatile AtomicReferenceArray<Bucket> ring;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rejects = new AtomicLong();
+
+    /**
+     * @param maxAgeSeconds
+     *      Nonces older than this are rejected as {@link #TOO_OLD}.
+     * @param bucketSeconds
+     *      Width of the time bucket. Smaller buckets release memory sooner, at the expense of more buckets.
+     * @param maxEntries
+     *      Maximum number of nonces to remember.
+     */
+    public BucketedNonceVerifier(int maxAgeSeconds, int bucketSeconds, int maxEntries) {
+        this.bucketWidth = bucketSeconds*1000L;
+        this.maxEntries = maxEntries;
+        setMaxAge(maxAgeSeconds);
+    }
+
+    public BucketedNonceVerifier(int maxAgeSeconds) {
+        this(maxAgeSeconds, Math.max(1, maxAgeSeconds/60), 1000000);
+    }
+
+    public int getMaxAge() {
+        return maxAgeSeconds;
+    }
+
+    /**
+     * Changing the max age forgets all the nonces seen so far.
+     */
+    public synchronized void setMaxAge(int ageSeconds) {
+        maxAgeSeconds = ageSeconds;
+        ring = new AtomicReferenceArray<Bucket>((int)(2*ageSeconds*1000L/bucketWidth)+3);
+        size.set(0);
+    }
+
+    public int seen(String opUrl, String nonce) {
+        long timestamp;
+        try {
+            timestamp = DATE_FORMAT.get().parse(nonce).getTime();
+        } catch (ParseException e) {
+            rejects.incrementAndGet();
+            return INVALID_TIMESTAMP;
+        }
+
+        long now = System.currentTimeMillis();
+        long maxAge = maxAgeSeconds*1000L;
+        if (now-timestamp>maxAge)
+            return TOO_OLD;
+        if (timestamp-now>maxAge) {
+            // too far in the future to fit in the ring
+            rejects.incrementAndGet();
+            return INVALID_TIMESTAMP;
+        }
+
+        Bucket b = bucketOf(timestamp/bucketWidth);
+        if (b==null)
+            return TOO_OLD;
+
+        String key = opUrl+' '+nonce;
+        Set<String> stripe = b.stripes[(key.hashCode()&0x7FFFFFFF)%STRIPES];
+        synchronized (stripe) {
+            if (b.dropped)
+                return TOO_OLD; // expired while we were looking it up
+            if (stripe.contains(key)) {
+                duplicates.incrementAndGet();
+                return SEEN;
+            }
+            if (size.incrementAndGet()>maxEntries) {
+                size.decrementAndGet();
+                rejects.incrementAndGet();
+                return SEEN;
+            }
+            stripe.add(key);
+        }
+        return OK;
+    }
+
+    /**
+     * Finds the bucket for the given bucket number, recycling the slot if it's occupied by an expired bucket.
+     *
+     * @return null if the slot is already taken by a newer bucket, which means the requested one has expired.
+     */
+    private Bucket bucketOf(long number) {
+        AtomicReferenceArray<Bucket> ring = this.ring;
+        int i = (int)(number%ring.length());
+        while (true) {
+            Bucket b = ring.get(i);
+            if (b!=null && b.number==number)    return b;
+            if (b!=null && b.number>number)     return null;
+
+            Bucket n = new Bucket(number);
+            if (ring.compareAndSet(i, b, n)) {
+                if (b!=null)
+                    b.drop();
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Number of nonces currently remembered.
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Number of nonces rejected because they have been seen before.
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    /**
+     * Number of nonces rejected because of a malformed timestamp or because the memory cap was reached.
+     */
+    public long getRejectCount() {
+        return rejects.get();
+    }
+
+    private final class Bucket {
+        final long number;
+        final Set<String>[] stripes;
+        volatile boolean dropped;
+
+        @SuppressWarnings("unchecked")
+        Bucket(long number) {
+            this.number = number;
+            stripes = new Set[STRIPES];
+            for (int i=0; i<STRIPES; i++)
+                stripes[i] = new HashSet<String>();
+        }
+
+        /**
+         * Forgets all the nonces in this bucket. The stripes themselves are left for GC to collect.
+         */
+        void drop() {
+            dropped = true;
+            for (Set<String> stripe : stripes) {
+                synchronized (stripe) {
+                    size.addAndGet(-stripe.size());
+                }
+            }
+        }
+    }
+
+    private static final int STRIPES = 16;
+
+    /**
+     * {@link InternetDateFormat} isn't thread-safe.
+     */
+    private static final ThreadLocal<InternetDateFormat> DATE_FORMAT = new ThreadLocal<InternetDateFormat>() {
+        @Override
+        protected InternetDateFormat initialValue() {
+            return new InternetDateFormat();
+        }
+    };
+}
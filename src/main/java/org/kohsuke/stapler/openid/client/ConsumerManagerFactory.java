@@ -0,0 +1,197 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.openid4java.consumer.ConsumerException;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.InMemoryConsumerAssociationStore;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.UrlIdentifier;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.util.HttpCache;
+import org.openid4java.util.HttpRequestOptions;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Creates {@link ConsumerManager}s with consistent HTTP settings, and holds the one
+ * {@link #getShared() shared} by all the {@link AuthenticationShell}s in the JVM.
+ *
+ * <p>
+ * Each {@link ConsumerManager} keeps a pool of keep-alive connections for associations and
+ * direct verifications, so sharing one manager lets repeated calls to the same OpenID provider
+ * reuse warm connections, instead of every shell opening its own.
+ *
+ * <p>
+ * openid4java doesn't expose the HTTP client of a {@link ConsumerManager}, so the connection limits
+ * are set to its connection manager through reflection. If that fails with a different version of openid4java,
+ * the defaults of commons-httpclient apply. Discovery opens its own connections for each identifier, but its
+ * results are cached by {@link DiscoveryCache}, so that's rare.
+ *
+ * <p>
+ * {@link #setMaxResponseSize(int)} only applies to discovery. The "associate" and "check_authentication" responses
+ * are read whole by {@link ConsumerManager} itself, and commons-httpclient has no setting to cap that, so only the
+ * timeouts and the connection limits protect against an OpenID provider that sends back an endless response there.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ConsumerManagerFactory {
+    private int connectTimeout = 5000;
+    private int socketTimeout = 10000;
+    private int maxRedirects = 5;
+    private int maxResponseSize = 100000;
+    private int maxConnectionsPerHost = 8;
+    private int maxConnections = 64;
+    private volatile ConsumerAssociationStore associations = new InMemoryConsumerAssociationStore();
+
+    private ConsumerManager shared;
+
+    /**
+     * Timeout in milliseconds to establish a connection to an OpenID provider.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Timeout in milliseconds to wait for data from an OpenID provider.
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public void setMaxRedirects(int maxRedirects) {
+        this.maxRedirects = maxRedirects;
+    }
+
+    /**
+     * Maximum number of bytes read from a discovery response.
+     * Doesn't apply to the "associate" and "check_authentication" responses. See the class documentation.
+     */
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * Maximum number of pooled connections to a single OpenID provider, and overall, per {@link ConsumerManager}.
+     */
+    public void setMaxConnections(int perHost, int total) {
+        this.maxConnectionsPerHost = perHost;
+        this.maxConnections = total;
+    }
+
+    /**
+     * Sets the store of associations used by all the {@link ConsumerManager}s created afterward,
+     * for example {@link FileConsumerAssociationStore} to keep them across restarts.
+     * By default, they share one in-memory store.
+     */
+    public void setAssociationStore(ConsumerAssociationStore associations) {
+        this.associations = associations;
+    }
+
+    public ConsumerAssociationStore getAssociationStore() {
+        return associations;
+    }
+
+    /**
+     * Creates a new {@link ConsumerManager} configured with the current settings.
+     */
+    public ConsumerManager create() throws ConsumerException {
+        ConsumerManager m = new ConsumerManager();
+        applyConnectionLimits(m);
+        m.setConnectTimeout(connectTimeout);
+        m.setSocketTimeout(socketTimeout);
+        m.setMaxRedirects(maxRedirects);
+        m.setAssociations(associations);
+        m.setNonceVerifier(new BucketedNonceVerifier(5000));
+        m.setDiscovery(new BoundedDiscovery());
+        return m;
+    }
+
+    /**
+     * Returns the {@link ConsumerManager} shared by everyone using this factory, creating it on the first call.
+     * Settings changed afterward don't affect it.
+     */
+    public synchronized ConsumerManager getShared() throws ConsumerException {
+        if (shared==null)
+            shared = create();
+        return shared;
+    }
+
+    /**
+     * Sets the limits to the connection manager of the given {@link ConsumerManager} only.
+     */
+    private void applyConnectionLimits(ConsumerManager m) {
+        if (HTTP_CLIENT==null)  return;
+        try {
+            HttpConnectionManagerParams params = ((HttpClient)HTTP_CLIENT.get(m)).getHttpConnectionManager().getParams();
+            params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+            params.setMaxTotalConnections(maxConnections);
+        } catch (IllegalAccessException e) {
+            LOGGER.warning("Failed to set the connection limits: "+e);
+        }
+    }
+
+    /**
+     * {@link Discovery} that uses our timeouts and response size limit for URL identifiers.
+     */
+    private final class BoundedDiscovery extends Discovery {
+        private final YadisResolver yadis = new YadisResolver();
+        private final HtmlResolver html = new HtmlResolver();
+
+        BoundedDiscovery() {
+            yadis.setMaxRedirects(maxRedirects);
+            html.setMaxRedirects(maxRedirects);
+        }
+
+        @Override
+        public List discover(Identifier identifier) throws DiscoveryException {
+            if (!(identifier instanceof UrlIdentifier))
+                return super.discover(identifier);
+
+            HttpRequestOptions options = new HttpRequestOptions();
+            options.setConnTimeout(connectTimeout);
+            options.setSocketTimeout(socketTimeout);
+            options.setMaxRedirects(maxRedirects);
+            options.setMaxBodySize(maxResponseSize);
+            HttpCache cache = new HttpCache();
+            cache.setDefaultRequestOptions(options);
+
+            UrlIdentifier url = (UrlIdentifier) identifier;
+            List result = yadis.discover(url.getIdentifier(), cache);
+            if (result==null || result.isEmpty())
+                result = html.discoverHtml(url, cache);   // fall back to HTML discovery, like Discovery does
+            return result;
+        }
+    }
+
+    /**
+     * Used by {@link AuthenticationShell}s by default.
+     */
+    public static final ConsumerManagerFactory DEFAULT = new ConsumerManagerFactory();
+
+    /**
+     * {@code ConsumerManager._httpClient}, or null if this version of openid4java doesn't have it.
+     */
+    private static final Field HTTP_CLIENT;
+    static {
+        Field f = null;
+        try {
+            f = ConsumerManager.class.getDeclaredField("_httpClient");
+            f.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            // the defaults of commons-httpclient apply
+        } catch (SecurityException e) {
+            // ditto
+        }
+        HTTP_CLIENT = f;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConsumerManagerFactory.class.getName());
+}
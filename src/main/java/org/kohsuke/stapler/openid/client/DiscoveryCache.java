@@ -0,0 +1,450 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.kohsuke.stapler.openid.Metrics;
+import org.kohsuke.stapler.openid.Metrics.Event;
+import org.kohsuke.stapler.openid.Metrics.Failure;
+import org.openid4java.OpenIDException;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the result of OpenID discovery and association for each claimed identifier,
+ * so that every new session doesn't have to talk to the OpenID provider again.
+ *
+ * <p>
+ * Concurrent requests for an identifier that's not in the cache wait for a single discovery.
+ * When an entry gets close to its expiration, it's refreshed in the background while the
+ * current value keeps being served. Failures are not cached.
+ *
+ * <p>
+ * Discoveries run on the given executor, not on the calling thread. The caller only waits
+ * up to {@linkplain #setDeadline(long, TimeUnit) the deadline}, so a slow OpenID provider
+ * doesn't tie up request handling threads. {@link #prefetch(String)} starts a discovery
+ * ahead of the first request that needs it. If the executor rejects a discovery because
+ * too many are already waiting, the caller gets {@link TimeoutException} right away.
+ *
+ * <p>
+ * The cache holds {@linkplain #setMaxEntries(int) a limited number} of identifiers. When it's full,
+ * expired and failed entries are evicted first, then others at random.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class DiscoveryCache {
+    private final ConsumerManager manager;
+    private final long ttl;
+    private final long refreshAhead;
+    private final Executor executor;
+    private volatile long deadline = TimeUnit.SECONDS.toMillis(10);
+    private volatile VerificationExecutor verifier = VerificationExecutor.DEFAULT;
+    private volatile int maxEntries = 10000;
+
+    private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+
+    /**
+     * Name under which this cache is {@linkplain #register(String) registered}, if any.
+     */
+    private volatile String key;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param ttl
+     *      How long a discovery result stays valid.
+     * @param refreshAhead
+     *      How long before the expiration the entry gets refreshed in the background.
+     * @param executor
+     *      Runs discoveries and background refreshes.
+     */
+    public DiscoveryCache(ConsumerManager manager, long ttl, long refreshAhead, TimeUnit unit, Executor executor) {
+        this.manager = manager;
+        this.ttl = unit.toMillis(ttl);
+        this.refreshAhead = unit.toMillis(refreshAhead);
+        this.executor = executor;
+    }
+
+    public DiscoveryCache(ConsumerManager manager) {
+        this(manager, 60, 5, TimeUnit.MINUTES, DISCOVERER);
+    }
+
+    public ConsumerManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Makes this cache available through {@link #lookup(String)}, so that deserialized
+     * {@link OpenIDSession}s can find their {@link ConsumerManager} and endpoint again.
+     * The key needs to be the same on all the nodes that share sessions.
+     *
+     * <p>
+     * The registry only holds the cache weakly, so a cache that's no longer used by anyone
+     * disappears from it without {@link #unregister()}.
+     *
+     * @throws IllegalArgumentException
+     *      if another cache is already registered under the same key.
+     */
+    public DiscoveryCache register(String key) {
+        synchronized (INSTANCES) {
+            DiscoveryCache c = lookup(key);
+            if (c!=null && c!=this)
+                throw new IllegalArgumentException("Another DiscoveryCache is already registered as "+key);
+            unregister();
+            purgeRegistry();
+            INSTANCES.put(key, new WeakReference<DiscoveryCache>(this));
+            this.key = key;
+        }
+        return this;
+    }
+
+    /**
+     * Registers this cache under the given key, or if it's taken, under the first of "key#1", "key#2", ...
+     * that isn't. This gives each of multiple objects of the same kind its own key,
+     * which is still the same on other nodes that create those objects in the same order.
+     *
+     * @see #register(String)
+     */
+    public DiscoveryCache registerUnique(String key) {
+        synchronized (INSTANCES) {
+            String k = key;
+            for (int i=1; lookup(k)!=null && lookup(k)!=this; i++)
+                k = key+'#'+i;
+            return register(k);
+        }
+    }
+
+    /**
+     * Removes this cache from the registry, if it's registered.
+     */
+    public void unregister() {
+        synchronized (INSTANCES) {
+            if (key==null)  return;
+            WeakReference<DiscoveryCache> r = INSTANCES.get(key);
+            if (r!=null && r.get()==this)
+                INSTANCES.remove(key);
+            key = null;
+        }
+    }
+
+    /**
+     * Drops the keys of the caches that have been garbage collected.
+     */
+    private static void purgeRegistry() {
+        for (Iterator<WeakReference<DiscoveryCache>> itr = INSTANCES.values().iterator(); itr.hasNext();)
+            if (itr.next().get()==null)
+                itr.remove();
+    }
+
+    /**
+     * @return null if this cache hasn't been registered.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Finds the cache {@linkplain #register(String) registered} under the given key.
+     *
+     * @return null if there's no such cache in this JVM.
+     */
+    public static DiscoveryCache lookup(String key) {
+        if (key==null)  return null;
+        WeakReference<DiscoveryCache> r = INSTANCES.get(key);
+        return r!=null ? r.get() : null;
+    }
+
+    /**
+     * Runs the verification of the authentication responses for {@link OpenIDSession}s created from this cache.
+     */
+    public VerificationExecutor getVerifier() {
+        return verifier;
+    }
+
+    public void setVerifier(VerificationExecutor verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * Sets the maximum number of identifiers kept in this cache.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets how long {@link #get(String)} waits for a discovery to complete.
+     */
+    public void setDeadline(long deadline, TimeUnit unit) {
+        this.deadline = unit.toMillis(deadline);
+    }
+
+    /**
+     * Starts discovering the given claimed identifier in the background, unless it's already in the cache.
+     */
+    public void prefetch(String openid) {
+        Entry n = new Entry(openid);
+        if (entries.putIfAbsent(openid, n)==null) {
+            evictIfFull();
+            try {
+                executor.execute(n);
+            } catch (RejectedExecutionException e) {
+                entries.remove(openid, n);  // too busy. the first request will do it
+            }
+        }
+    }
+
+    /**
+     * Returns the discovered and associated endpoint for the given claimed identifier.
+     *
+     * @throws TimeoutException
+     *      if the discovery didn't complete within the deadline. The discovery keeps running
+     *      in the background, so retrying the request later is likely to succeed.
+     */
+    public DiscoveryInformation get(String openid) throws OpenIDException, TimeoutException {
+        while (true) {
+            Entry e = entries.get(openid);
+            if (e!=null) {
+                if (!e.isDone()) {
+                    // someone else is already discovering this identifier
+                    hits.incrementAndGet();
+                    return e.await();
+                }
+                if (e.isValid()) {
+                    hits.incrementAndGet();
+                    if (e.needsRefresh())
+                        refresh(openid, e);
+                    return e.await();
+                }
+                // expired or failed
+                Entry n = new Entry(openid);
+                if (!entries.replace(openid, e, n))
+                    continue;
+                return load(n);
+            }
+
+            Entry n = new Entry(openid);
+            if (entries.putIfAbsent(openid, n)!=null)
+                continue;
+            evictIfFull();
+            return load(n);
+        }
+    }
+
+    /**
+     * Discards the cached result for the given identifier, for example after the endpoint
+     * has been found to be unusable.
+     */
+    public void invalidate(String openid) {
+        entries.remove(openid);
+    }
+
+    private DiscoveryInformation load(Entry n) throws OpenIDException, TimeoutException {
+        misses.incrementAndGet();
+        try {
+            executor.execute(n);
+        } catch (RejectedExecutionException e) {
+            // too many discoveries are waiting, so this one wouldn't complete within the deadline anyway
+            entries.remove(n.openid, n);
+            n.cancel(false);    // so that the others waiting for this entry fail as well
+            throw (TimeoutException)new TimeoutException("Too many OpenID discoveries in progress").initCause(e);
+        }
+        return n.await();
+    }
+
+    private void refresh(final String openid, final Entry current) {
+        if (!current.refreshing.compareAndSet(false, true))
+            return; // already in progress
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    Entry n = new Entry(openid);
+                    n.run();
+                    if (n.isValid()) {
+                        refreshes.incrementAndGet();
+                        entries.replace(openid, current, n);
+                    } else {
+                        LOGGER.log(Level.FINE, "Failed to refresh the discovery of "+openid);
+                        // keep serving the current value until it expires
+                        current.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // busy or shut down. try again on a later hit
+            current.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Keeps the number of entries under {@link #maxEntries}, preferring to evict
+     * the ones that are no longer usable. Evicts a bit more than needed, so that this doesn't run on every miss.
+     */
+    private void evictIfFull() {
+        int max = maxEntries;
+        if (entries.size()<=max)   return;
+        synchronized (entries) {
+            int target = max-max/10;
+            for (Iterator<Map.Entry<String,Entry>> itr = entries.entrySet().iterator(); itr.hasNext() && entries.size()>target;) {
+                Entry e = itr.next().getValue();
+                if (e.isDone() && !e.isValid())
+                    itr.remove();
+            }
+            // ConcurrentHashMap iterates in no particular order, so this picks the victims more or less at random
+            for (Iterator<Map.Entry<String,Entry>> itr = entries.entrySet().iterator(); itr.hasNext() && entries.size()>target;) {
+                itr.next();
+                itr.remove();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Number of entries successfully refreshed ahead of their expiration.
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * Number of discoveries that failed.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Fraction of {@link #get(String)} calls that didn't need to wait for their own discovery.
+     */
+    public double getHitRate() {
+        long h = hits.get(), m = misses.get();
+        return h+m==0 ? 0 : (double)h/(h+m);
+    }
+
+    private final class Entry extends FutureTask<DiscoveryInformation> {
+        final String openid;
+        private volatile long expiry;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(final String openid) {
+            super(new Callable<DiscoveryInformation>() {
+                public DiscoveryInformation call() throws Exception {
+                    List discoveries;
+                    long start = System.nanoTime();
+                    try {
+                        discoveries = manager.discover(openid);
+                    } finally {
+                        Metrics.INSTANCE.record(Event.CONSUMER_DISCOVERY, start);
+                    }
+
+                    start = System.nanoTime();
+                    DiscoveryInformation d;
+                    try {
+                        d = manager.associate(discoveries);
+                    } finally {
+                        Metrics.INSTANCE.record(Event.CONSUMER_ASSOCIATE, start);
+                    }
+                    if (d==null)
+                        throw new DiscoveryException("No OpenID endpoint found for "+openid);
+                    return d;
+                }
+            });
+            this.openid = openid;
+        }
+
+        @Override
+        protected void set(DiscoveryInformation v) {
+            expiry = System.currentTimeMillis()+ttl;
+            super.set(v);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            failures.incrementAndGet();
+            Metrics.INSTANCE.failure(Event.CONSUMER_DISCOVERY, Failure.DISCOVERY);
+            super.setException(t);
+        }
+
+        boolean isValid() {
+            return isDone() && expiry!=0 && System.currentTimeMillis()<expiry;
+        }
+
+        boolean needsRefresh() {
+            return System.currentTimeMillis()>=expiry-refreshAhead;
+        }
+
+        DiscoveryInformation await() throws OpenIDException, TimeoutException {
+            try {
+                return get(deadline, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DiscoveryException("Interrupted while waiting for the discovery", e);
+            } catch (CancellationException e) {
+                throw (TimeoutException)new TimeoutException("Too many OpenID discoveries in progress").initCause(e);
+            } catch (ExecutionException e) {
+                Throwable c = e.getCause();
+                if (c instanceof OpenIDException)   throw (OpenIDException)c;
+                if (c instanceof RuntimeException)  throw (RuntimeException)c;
+                if (c instanceof Error)             throw (Error)c;
+                throw new DiscoveryException("Discovery failed", c);
+            }
+        }
+    }
+
+    /**
+     * Registered caches. Guarded by itself for updates.
+     */
+    private static final ConcurrentMap<String,WeakReference<DiscoveryCache>> INSTANCES = new ConcurrentHashMap<String,WeakReference<DiscoveryCache>>();
+
+    private static final int MAX_QUEUED_DISCOVERIES = 64;
+
+    /**
+     * Shared by all the caches that didn't specify their own executor. Most discoveries are
+     * for a handful of identifiers and are cached afterward, so a few threads is plenty.
+     * The queue is bounded, so that a burst of logins for distinct identifiers
+     * against a slow provider fails fast instead of queuing up discoveries nobody waits for any more.
+     */
+    private static final ThreadPoolExecutor DISCOVERER = new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_DISCOVERIES), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "OpenID discovery");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    static {
+        DISCOVERER.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DiscoveryCache.class.getName());
+}
@@ -0,0 +1,288 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.apache.commons.io.IOUtils;
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link ConsumerAssociationStore} that keeps the associations with OpenID providers on the local disk,
+ * so that they survive restarts and the Diffie-Hellman key exchange doesn't need to be repeated.
+ *
+ * <p>
+ * All the associations are also kept in memory, so lookups don't touch the disk, except when
+ * a handle isn't known in memory, in which case the disk is checked in case another JVM sharing
+ * the same directory has established it.
+ *
+ * <p>
+ * Each association is stored in its own file named after the hashes of the OP URL and the handle.
+ * See {@link #write(File, String, Association)} for the format.
+ * The timestamp of the file is set to the expiration date. Expired associations are deleted
+ * when they are encountered. The files contain the MAC keys, so only the owner can read them.
+ *
+ * <p>
+ * To share one instance among all the {@link AuthenticationShell}s in the JVM, set it to
+ * {@link ConsumerManagerFactory#setAssociationStore(ConsumerAssociationStore)}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class FileConsumerAssociationStore implements ConsumerAssociationStore {
+    private final File rootDir;
+
+    /**
+     * OP URL to handle to association.
+     */
+    private final ConcurrentMap<String,Map<String,Association>> associations = new ConcurrentHashMap<String,Map<String,Association>>();
+
+    public FileConsumerAssociationStore(File rootDir) {
+        this.rootDir = rootDir;
+        rootDir.mkdirs();
+        reload();
+    }
+
+    /**
+     * Loads all the unexpired associations from the disk.
+     */
+    private void reload() {
+        File[] dirs = rootDir.listFiles();
+        if (dirs==null)     return;
+        long now = System.currentTimeMillis();
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files==null)    continue;
+            for (File f : files) {
+                if (f.getName().endsWith(".tmp") && f.lastModified()<now-TimeUnit.MINUTES.toMillis(1)) {
+                    f.delete(); // left behind by a crash in the middle of write()
+                    continue;
+                }
+                if (!f.getName().endsWith(".dat"))
+                    continue;
+                if (f.lastModified()<now) {
+                    f.delete();
+                    continue;
+                }
+                Record r = read(f);
+                if (r!=null)
+                    mapOf(r.opUrl).put(r.association.getHandle(), r.association);
+            }
+        }
+    }
+
+    public void save(String opUrl, Association association) {
+        mapOf(opUrl).put(association.getHandle(), association);
+
+        File f = fileOf(opUrl, association.getHandle());
+        f.getParentFile().mkdirs();
+        try {
+            write(f, opUrl, association);
+        } catch (IOException e) {
+            // still usable from memory. it just won't survive a restart
+            LOGGER.log(Level.WARNING, "Failed to persist the association with "+opUrl+" to "+f, e);
+        }
+    }
+
+    public Association load(String opUrl, String handle) {
+        Map<String,Association> m = associations.get(opUrl);
+        Association a = m!=null ? m.get(handle) : null;
+        if (a==null) {
+            // maybe established by another JVM sharing the directory
+            File f = fileOf(opUrl, handle);
+            if (f.exists()) {
+                Record r = read(f);
+                if (r!=null && r.opUrl.equals(opUrl) && r.association.getHandle().equals(handle)) {
+                    a = r.association;
+                    mapOf(opUrl).put(handle, a);
+                }
+            }
+        }
+        if (a!=null && a.hasExpired()) {
+            remove(opUrl, handle);
+            return null;
+        }
+        return a;
+    }
+
+    /**
+     * Returns the unexpired association with the given OP that expires last.
+     */
+    public Association load(String opUrl) {
+        Map<String,Association> m = associations.get(opUrl);
+        if (m==null)    return null;
+
+        Association latest = null;
+        for (Iterator<Association> itr = m.values().iterator(); itr.hasNext();) {
+            Association a = itr.next();
+            if (a.hasExpired()) {
+                itr.remove();
+                fileOf(opUrl, a.getHandle()).delete();
+                continue;
+            }
+            if (latest==null || latest.getExpiry().before(a.getExpiry()))
+                latest = a;
+        }
+        return latest;
+    }
+
+    public void remove(String opUrl, String handle) {
+        Map<String,Association> m = associations.get(opUrl);
+        if (m!=null)
+            m.remove(handle);
+        fileOf(opUrl, handle).delete();
+    }
+
+    private Map<String,Association> mapOf(String opUrl) {
+        Map<String,Association> m = associations.get(opUrl);
+        if (m==null) {
+            Map<String,Association> n = new ConcurrentHashMap<String,Association>();
+            m = associations.putIfAbsent(opUrl, n);
+            if (m==null)    m = n;
+        }
+        return m;
+    }
+
+    private File fileOf(String opUrl, String handle) {
+        return new File(rootDir, digest(opUrl)+'/'+digest(handle)+".dat");
+    }
+
+    /**
+     * Writes to a temporary file, syncs it, then renames it into place, so that a crash never leaves a truncated record behind.
+     * The format is:
+     * <pre>
+     * UTF      OP URL
+     * byte     format version ({@link #VERSION})
+     * UTF      handle
+     * UTF      type, like "HMAC-SHA1"
+     * short    length of the MAC key
+     * byte[]   MAC key
+     * long     expiration date in milliseconds since the epoch
+     * </pre>
+     */
+    private void write(File f, String opUrl, Association a) throws IOException {
+        File tmp = new File(f.getPath()+".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            restrictToOwner(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            byte[] key = a.getMacKey().getEncoded();
+            out.writeUTF(opUrl);
+            out.writeByte(VERSION);
+            out.writeUTF(a.getHandle());
+            out.writeUTF(a.getType());
+            out.writeShort(key.length);
+            out.write(key);
+            out.writeLong(a.getExpiry().getTime());
+            out.flush();
+            fos.getFD().sync();     // otherwise the rename can reach the disk before the data does
+            fos.close();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fos);
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.setLastModified(a.getExpiry().getTime())) {
+            tmp.delete();
+            throw new IOException("Failed to set the timestamp of "+tmp);
+        }
+        if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+            tmp.delete();
+            throw new IOException("Failed to rename "+tmp+" to "+f);
+        }
+    }
+
+    /**
+     * Anyone who can read the MAC key can forge assertions from the OP, so don't leave it to the umask.
+     */
+    private static void restrictToOwner(File f) throws IOException {
+        if (!(f.setReadable(false,false) && f.setReadable(true,true)
+           && f.setWritable(false,false) && f.setWritable(true,true)))
+            throw new IOException("Failed to restrict the permissions of "+f);
+    }
+
+    /**
+     * @return null if the file is unreadable, in which case it's deleted.
+     */
+    private Record read(File f) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            String opUrl = in.readUTF();
+            int v = in.readUnsignedByte();
+            if (v!=VERSION)
+                throw new IOException("Unsupported association format version: "+v);
+
+            String handle = in.readUTF();
+            String type = in.readUTF();
+            byte[] key = new byte[in.readUnsignedShort()];
+            in.readFully(key);
+            Date expiry = new Date(in.readLong());
+
+            Association a;
+            if (Association.TYPE_HMAC_SHA1.equals(type))
+                a = Association.createHmacSha1(handle, key, expiry);
+            else
+            if (Association.TYPE_HMAC_SHA256.equals(type))
+                a = Association.createHmacSha256(handle, key, expiry);
+            else
+                throw new IOException("Unsupported association type: "+type);
+            return new Record(opUrl, a);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+            IOUtils.closeQuietly(in);
+            in = null;
+            f.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static String digest(String s) {
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder buf = new StringBuilder(h.length*2);
+            for (byte b : h) {
+                buf.append(HEX[(b>>4)&0xF]).append(HEX[b&0xF]);
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);    // SHA-1 is always there
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final class Record {
+        final String opUrl;
+        final Association association;
+
+        Record(String opUrl, Association association) {
+            this.opUrl = opUrl;
+            this.association = association;
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int VERSION = 1;
+
+    private static final Logger LOGGER = Logger.getLogger(FileConsumerAssociationStore.class.getName());
+}
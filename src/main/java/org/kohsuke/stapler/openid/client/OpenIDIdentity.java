@@ -3,53 +3,170 @@ package org.kohsuke.stapler.openid.client;
 import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.message.AuthSuccess;
 import org.openid4java.message.MessageException;
+import org.openid4java.message.MessageExtension;
 import org.openid4java.message.ax.AxMessage;
 import org.openid4java.message.ax.FetchResponse;
 import org.openid4java.message.sreg.SRegMessage;
 import org.openid4java.message.sreg.SRegResponse;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Verified identity of the user.
  *
+ * <p>
+ * The SReg and AX extensions in the authentication response are parsed once, upon the first
+ * access to an attribute, into an immutable map.
+ *
+ * <p>
+ * The serialized form only carries the OpenID and the attributes, not the whole authentication response.
+ *
  * @author Kohsuke Kawaguchi
  */
-public class OpenIDIdentity {
+public class OpenIDIdentity implements Externalizable {
     /**
      * Underlying openid4java authentication object that captures all the info.
+     * Null after deserialization.
+     */
+    private transient AuthSuccess auth;
+
+    private String openId;
+
+    /**
+     * SReg attributes keyed by their field names and AX attributes keyed by their type URIs.
+     * Lazily parsed from {@link #auth}.
      */
-    private final AuthSuccess auth;
+    private volatile Map<String,String> attributes;
 
     public OpenIDIdentity(AuthSuccess auth) {
         this.auth = auth;
+        try {
+            this.openId = auth.getIdentity();
+        } catch (DiscoveryException e) {
+            throw new AssertionError(e);    // AFAICT, this can never be thrown
+        }
+    }
+
+    /**
+     * For deserialization only.
+     */
+    public OpenIDIdentity() {
     }
 
     /**
      * Gets the fully OpenID URL of the user.
      */
     public String getOpenID() {
-        try {
-            return auth.getIdentity();
-        } catch (DiscoveryException e) {
-            throw new AssertionError(e);    // AFAICT, this can never be thrown
-        }
+        return openId;
     }
 
+    /**
+     * Gets the value of the SReg attribute, like "nickname".
+     */
     public String getSRegAttribute(String attributeName) {
-        try {
-            if (!auth.hasExtension(SRegMessage.OPENID_NS_SREG)) return null;
-            SRegResponse sr = (SRegResponse)auth.getExtension(SRegMessage.OPENID_NS_SREG);
-            if (sr==null)   return null;
-            return sr.getAttributeValue(attributeName);
-        } catch (MessageException e) {
-            throw new IllegalStateException(e);
+        return getAttributes().get(attributeName);
+    }
+
+    /**
+     * Gets the value of the AX attribute of the given type URI, like "http://axschema.org/contact/email".
+     */
+    public String getAxAttribute(String typeUri) {
+        return getAttributes().get(typeUri);
+    }
+
+    /**
+     * Gets all the attributes sent by the OpenID provider. SReg attributes are keyed by their
+     * field names (like "nickname") and AX attributes are keyed by their type URIs
+     * (like "http://axschema.org/contact/email".) If an AX attribute has multiple values,
+     * only the first one is included.
+     *
+     * @return
+     *      Immutable map.
+     */
+    public Map<String,String> getAttributes() {
+        Map<String,String> a = attributes;
+        if (a==null)
+            attributes = a = parseAttributes();
+        return a;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        Map<String,String> a = getAttributes();
+        out.writeByte(VERSION);
+        writeString(out, openId);
+        out.writeInt(a.size());
+        for (Map.Entry<String,String> e : a.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
         }
     }
 
-    public String getAxAttribute(String name) {
+    public void readExternal(ObjectInput in) throws IOException {
+        int v = in.readUnsignedByte();
+        if (v!=VERSION)
+            throw new IOException("Unsupported serialization format version: "+v);
+        openId = readString(in);
+        int n = in.readInt();
+        if (n<0)
+            throw new IOException("Invalid number of attributes: "+n);
+        Map<String,String> a = new HashMap<String,String>();
+        for (int i=0; i<n; i++)
+            a.put(readString(in), readString(in));
+        attributes = Collections.unmodifiableMap(a);
+    }
+
+    /**
+     * Length-prefixed UTF-8, since {@link ObjectOutput#writeUTF(String)} can't handle more than 64KB,
+     * and the attribute values come from the OpenID provider.
+     */
+    private static void writeString(ObjectOutput out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ObjectInput in) throws IOException {
+        int len = in.readInt();
+        if (len<0)
+            throw new IOException("Invalid string length: "+len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    private Map<String,String> parseAttributes() {
         try {
-            if (!auth.hasExtension(AxMessage.OPENID_NS_AX)) return null;
-            FetchResponse fr = (FetchResponse)auth.getExtension(AxMessage.OPENID_NS_AX);
-            return fr.getAttributeValue(name);
+            Map<String,String> r = new HashMap<String,String>();
+            if (auth.hasExtension(SRegMessage.OPENID_NS_SREG)) {
+                MessageExtension ext = auth.getExtension(SRegMessage.OPENID_NS_SREG);
+                if (ext instanceof SRegResponse)
+                    r.putAll((Map<String,String>)((SRegResponse)ext).getAttributes());
+            }
+            if (auth.hasExtension(AxMessage.OPENID_NS_AX)) {
+                MessageExtension ext = auth.getExtension(AxMessage.OPENID_NS_AX);
+                if (ext instanceof FetchResponse) {
+                    FetchResponse fr = (FetchResponse)ext;
+                    for (String alias : (List<String>)fr.getAttributeAliases()) {
+                        String type = fr.getAttributeTypeUri(alias);
+                        String value = fr.getAttributeValue(alias);
+                        if (type!=null && value!=null)
+                            r.put(type, value);
+                    }
+                }
+            }
+            switch (r.size()) {
+            case 0:     return Collections.emptyMap();
+            case 1:     Map.Entry<String,String> e = r.entrySet().iterator().next();
+                        return Collections.singletonMap(e.getKey(), e.getValue());
+            default:    return Collections.unmodifiableMap(r);
+            }
         } catch (MessageException e) {
             throw new IllegalStateException(e);
         }
@@ -88,4 +205,11 @@ public class OpenIDIdentity {
     public String getFirstName() {
         return getAxAttribute("http://axschema.org/namePerson/first");
     }
+
+    /**
+     * Version 1 used {@link ObjectOutput#writeUTF(String)} and a 16 bit attribute count.
+     */
+    private static final int VERSION = 2;
+
+    private static final long serialVersionUID = 1L;
 }
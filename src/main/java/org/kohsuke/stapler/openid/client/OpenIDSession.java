@@ -6,6 +6,9 @@ import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.openid.Metrics;
+import org.kohsuke.stapler.openid.Metrics.Event;
+import org.kohsuke.stapler.openid.Metrics.Failure;
 import org.openid4java.OpenIDException;
 import org.openid4java.consumer.ConsumerManager;
 import org.openid4java.consumer.VerificationResult;
@@ -16,21 +19,36 @@ import org.openid4java.message.AuthSuccess;
 import org.openid4java.message.ParameterList;
 import org.openid4java.message.sreg.SRegRequest;
 
+import java.io.Externalizable;
 import java.io.IOException;
-import java.io.Serializable;
-import java.util.List;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Captures the in-progress OpenID authentication session and its result.
  *
+ * <p>
+ * This object is stored in the HTTP session, so it has a compact serialized form for session replication
+ * and passivation. The {@link ConsumerManager} and the discovered endpoint aren't serialized; if this session
+ * was created from a {@linkplain DiscoveryCache#register(String) registered} {@link DiscoveryCache},
+ * they are looked up from the same cache on the receiving node when they are needed.
+ *
  * @author Kohsuke Kawaguchi
  */
-public class OpenIDSession implements Serializable  {
-    // fake serializable just to make Tomcat happy
-    private transient final ConsumerManager manager;
-    private transient final DiscoveryInformation endpoint;
-    private transient String from;
-    private transient final String finishUrl;
+public class OpenIDSession implements Externalizable {
+    private transient ConsumerManager manager;
+    private transient DiscoveryInformation endpoint;
+
+    /**
+     * Key of the {@link DiscoveryCache} this session was created from, and the claimed identity
+     * that was discovered, so that {@link #manager} and {@link #endpoint} can be restored
+     * after deserialization. Null if this session wasn't created from a registered cache.
+     */
+    private String cacheKey, openid;
+
+    private String from;
+    private String finishUrl;
 
     /**
      * Authenticated identity.
@@ -47,10 +65,30 @@ public class OpenIDSession implements Serializable  {
      *      end with '/'.
      */
     public OpenIDSession(ConsumerManager manager, String openid, String thisUrl) throws OpenIDException, IOException {
-        this.manager = manager;
+        this(manager, manager.associate(manager.discover(openid)), thisUrl);
+    }
 
-        List discoveries = manager.discover(openid);
-        endpoint = manager.associate(discoveries);
+    /**
+     * @param endpoint
+     *      The already discovered and associated OpenID provider endpoint, for example from {@link DiscoveryCache}.
+     * @param thisUrl
+     *      See {@link #OpenIDSession(ConsumerManager, String, String)}.
+     */
+    public OpenIDSession(DiscoveryCache discoveries, String openid, String thisUrl) throws OpenIDException, TimeoutException {
+        this(discoveries.getManager(), discoveries.get(openid), thisUrl);
+        this.cacheKey = discoveries.getKey();
+        this.openid = openid;
+    }
+
+    /**
+     * For deserialization only.
+     */
+    public OpenIDSession() {
+    }
+
+    public OpenIDSession(ConsumerManager manager, DiscoveryInformation endpoint, String thisUrl) {
+        this.manager = manager;
+        this.endpoint = endpoint;
 
         if (thisUrl.startsWith("/")) {
             // relative to context path
@@ -81,7 +119,7 @@ public class OpenIDSession implements Serializable  {
     public void commence() {
         try {
             this.from = Stapler.getCurrentRequest().getRequestURIWithQueryString();
-            final AuthRequest authReq = manager.authenticate(endpoint, finishUrl);
+            final AuthRequest authReq = getManager().authenticate(getEndpoint(), finishUrl);
 
             SRegRequest sregReq = SRegRequest.createFetchRequest();
             sregReq.addAttribute("fullname", false);
@@ -97,6 +135,8 @@ public class OpenIDSession implements Serializable  {
             throw new HttpRedirect(url);
         } catch (OpenIDException e) {
             throw HttpResponses.error(e);
+        } catch (TimeoutException e) {
+            throw AuthenticationShell.serviceUnavailable(e, "OpenID provider is not responding. Please try again later.");
         }
     }
 
@@ -109,19 +149,104 @@ public class OpenIDSession implements Serializable  {
         ParameterList responselist = new ParameterList(request.getParameterMap());
 
         // verify the process
-        VerificationResult verification = manager.verify(request.getRequestURLWithQueryString().toString(), responselist, endpoint);
+        DiscoveryInformation discovered;
+        try {
+            discovered = getEndpoint();
+        } catch (TimeoutException e) {
+            // nothing is consumed yet, so the same response can be tried again
+            Metrics.INSTANCE.failure(Event.CONSUMER_DISCOVERY, Failure.TIMEOUT);
+            throw AuthenticationShell.serviceUnavailable(e, "OpenID provider is not responding. Please try again later.");
+        }
+
+        VerificationResult verification;
+        long start = System.nanoTime();
+        try {
+            verification = getVerifier().verify(getManager(), request.getRequestURLWithQueryString().toString(), responselist, discovered);
+        } catch (VerificationRejectedException e) {
+            // never started, so the same response can be tried again
+            Metrics.INSTANCE.failure(Event.CONSUMER_VERIFY, Failure.REJECTED);
+            throw AuthenticationShell.serviceUnavailable(e, "Too many logins in progress. Please try again later.");
+        } catch (TimeoutException e) {
+            // the nonce may already be consumed, so this response can't be retried. the next authenticate() starts over
+            Metrics.INSTANCE.failure(Event.CONSUMER_VERIFY, Failure.TIMEOUT);
+            throw HttpResponses.error(500,"Failed to login: the OpenID provider didn't respond in time. Please log in again.");
+        } catch (OpenIDException e) {
+            Metrics.INSTANCE.failure(Event.CONSUMER_VERIFY, Failure.MESSAGE);
+            throw e;
+        } finally {
+            Metrics.INSTANCE.record(Event.CONSUMER_VERIFY, start);
+        }
 
         // examine the verification result and extract the verified identifier
         Identifier verified = verification.getVerifiedId();
-        if (verified == null)
+        if (verified == null) {
+            Metrics.INSTANCE.failure(Event.CONSUMER_VERIFY, Failure.VERIFICATION);
             throw HttpResponses.error(500,"Failed to login: " + verification.getStatusMsg());
+        }
 
         this.identity = new OpenIDIdentity((AuthSuccess) verification.getAuthResponse());
 
         return HttpResponses.redirectTo(from);
     }
 
+    private ConsumerManager getManager() {
+        if (manager==null)
+            manager = getCache().getManager();
+        return manager;
+    }
+
+    private DiscoveryInformation getEndpoint() throws OpenIDException, TimeoutException {
+        if (endpoint==null)
+            endpoint = getCache().get(openid);
+        return endpoint;
+    }
+
+    /**
+     * The verification runs on the pool of the cache this session came from, if any.
+     */
+    private VerificationExecutor getVerifier() {
+        DiscoveryCache c = DiscoveryCache.lookup(cacheKey);
+        return c!=null ? c.getVerifier() : VerificationExecutor.DEFAULT;
+    }
+
+    /**
+     * Used after deserialization to find the cache this session was created from.
+     */
+    private DiscoveryCache getCache() {
+        DiscoveryCache c = DiscoveryCache.lookup(cacheKey);
+        if (c==null)
+            throw new IllegalStateException("This OpenID session was deserialized but its DiscoveryCache '"+cacheKey+"' isn't registered on this node");
+        return c;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeObject(cacheKey);
+        out.writeObject(openid);
+        out.writeObject(from);
+        out.writeObject(finishUrl);
+        out.writeBoolean(identity!=null);
+        if (identity!=null)
+            identity.writeExternal(out);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int v = in.readUnsignedByte();
+        if (v!=VERSION)
+            throw new IOException("Unsupported serialization format version: "+v);
+        cacheKey = (String)in.readObject();
+        openid = (String)in.readObject();
+        from = (String)in.readObject();
+        finishUrl = (String)in.readObject();
+        if (in.readBoolean()) {
+            identity = new OpenIDIdentity();
+            identity.readExternal(in);
+        }
+    }
+
     public static final AttributeKey<OpenIDSession> KEY = AttributeKey.sessionScoped();
 
+    private static final int VERSION = 1;
+
     private static final long serialVersionUID = 1L;
 }
@@ -0,0 +1,161 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.openid4java.OpenIDException;
+import org.openid4java.consumer.ConsumerException;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.VerificationResult;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.message.ParameterList;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs {@link ConsumerManager#verify(String, ParameterList, DiscoveryInformation)} on a bounded pool
+ * of threads, so that a slow OpenID provider can't tie up all the request handling threads of the container.
+ *
+ * <p>
+ * Verification can involve a direct "check_authentication" request to the OpenID provider.
+ * The request thread waits for the verification only up to the deadline, and each provider can
+ * only have a limited number of verifications in progress at any given moment. When either limit
+ * is hit, the caller gets {@link VerificationRejectedException} right away, instead of piling up more threads
+ * behind the slow provider. Nothing is consumed in that case, so the same response can be retried later.
+ *
+ * <p>
+ * When the deadline passes, the verification is cancelled (which can't cut short a socket read already
+ * in progress; the thread stays busy until the HTTP client's socket timeout), but it may have already gotten far enough
+ * to consume the nonce of the response, or the private association at the provider. So the same response
+ * can't be verified again, and the user needs to log in again rather than retry.
+ *
+ * <p>
+ * (Servlet 3 asynchronous requests would let us release the request thread altogether, but this
+ * library works with Servlet 2.4 containers, so the request thread waits with a deadline instead.)
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class VerificationExecutor {
+    private final ThreadPoolExecutor pool;
+    private final int perProviderLimit;
+    private volatile long deadline;
+
+    private final ConcurrentMap<String,Semaphore> providers = new ConcurrentHashMap<String,Semaphore>();
+
+    /**
+     * @param threads
+     *      Maximum number of verifications in progress overall.
+     * @param perProviderLimit
+     *      Maximum number of verifications in progress with a single OpenID provider.
+     * @param deadline
+     *      How long the request thread waits for a verification.
+     */
+    public VerificationExecutor(int threads, int perProviderLimit, long deadline, TimeUnit unit) {
+        this.perProviderLimit = perProviderLimit;
+        this.deadline = unit.toMillis(deadline);
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "OpenID verification");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public void setDeadline(long deadline, TimeUnit unit) {
+        this.deadline = unit.toMillis(deadline);
+    }
+
+    /**
+     * Verifies the authentication response.
+     *
+     * @throws VerificationRejectedException
+     *      if too many verifications are already in progress. The verification hasn't started.
+     * @throws TimeoutException
+     *      if the verification didn't complete within the deadline. The verification is cancelled,
+     *      but may have consumed the response. See the class documentation.
+     */
+    public VerificationResult verify(final ConsumerManager manager, final String receivingUrl, final ParameterList response,
+                                     final DiscoveryInformation endpoint) throws OpenIDException, TimeoutException {
+        final String op = endpoint!=null ? endpoint.getOPEndpoint().getHost() : "";
+        final Semaphore permits = permitsOf(op);
+        if (!permits.tryAcquire())
+            throw new VerificationRejectedException("Too many verifications in progress with "+op);
+
+        // whoever gets this first, the pool thread starting the verification or the caller giving up on it,
+        // is responsible for releasing the permit
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Future<VerificationResult> f;
+        try {
+            f = pool.submit(new Callable<VerificationResult>() {
+                public VerificationResult call() throws Exception {
+                    if (!claimed.compareAndSet(false,true))
+                        return null;    // the caller has already given up
+                    try {
+                        return manager.verify(receivingUrl, response, endpoint);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw new VerificationRejectedException("Too many verifications in progress");
+        }
+
+        try {
+            return f.get(deadline, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // frees up the thread if it's waiting on something interruptible, or if it hasn't even started.
+            // a blocking socket read doesn't respond to the interrupt, so one already talking to the provider
+            // runs until the HTTP client's own socket timeout
+            f.cancel(true);
+            if (claimed.compareAndSet(false,true))
+                permits.release();  // it hasn't even started
+            throw (TimeoutException)new TimeoutException("Verification with "+op+" didn't complete in "+deadline+"ms").initCause(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConsumerException("Interrupted while waiting for the verification", e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof OpenIDException)   throw (OpenIDException)c;
+            if (c instanceof RuntimeException)  throw (RuntimeException)c;
+            if (c instanceof Error)             throw (Error)c;
+            throw new ConsumerException("Verification failed", c);
+        }
+    }
+
+    private Semaphore permitsOf(String op) {
+        Semaphore s = providers.get(op);
+        if (s==null) {
+            Semaphore n = new Semaphore(perProviderLimit);
+            s = providers.putIfAbsent(op, n);
+            if (s==null)    s = n;
+        }
+        return s;
+    }
+
+    /**
+     * Number of verifications currently in progress with the given OpenID provider host.
+     */
+    public int getInProgress(String host) {
+        Semaphore s = providers.get(host);
+        return s==null ? 0 : perProviderLimit-s.availablePermits();
+    }
+
+    /**
+     * Shared by all the {@link DiscoveryCache}s that didn't specify their own.
+     */
+    public static final VerificationExecutor DEFAULT = new VerificationExecutor(32, 8, 10, TimeUnit.SECONDS);
+}
@@ -0,0 +1,21 @@
+package org.kohsuke.stapler.openid.client;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Thrown by {@link VerificationExecutor} when it turns down a verification without starting it,
+ * because too many verifications are already in progress.
+ *
+ * <p>
+ * Unlike a verification that missed its deadline, nothing has been consumed yet,
+ * so the same authentication response can be verified again a bit later.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class VerificationRejectedException extends TimeoutException {
+    public VerificationRejectedException(String message) {
+        super(message);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
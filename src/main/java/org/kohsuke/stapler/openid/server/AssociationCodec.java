@@ -0,0 +1,67 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.openid4java.association.Association;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Compact binary encoding of {@link Association}.
+ *
+ * <p>
+ * Unlike Java serialization, the format doesn't depend on the class layout of openid4java,
+ * so the persisted associations survive library upgrades. The format is:
+ * <pre>
+ * byte     format version ({@link #VERSION})
+ * UTF      handle
+ * UTF      type, like "HMAC-SHA1"
+ * short    length of the MAC key
+ * byte[]   MAC key
+ * long     expiration date in milliseconds since the epoch
+ * </pre>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class AssociationCodec {
+    private AssociationCodec() {}
+
+    static void write(Association a, DataOutput out) throws IOException {
+        byte[] key = a.getMacKey().getEncoded();
+        out.writeByte(VERSION);
+        out.writeUTF(a.getHandle());
+        out.writeUTF(a.getType());
+        out.writeShort(key.length);
+        out.write(key);
+        out.writeLong(a.getExpiry().getTime());
+    }
+
+    /**
+     * @throws IOException
+     *      if the data is truncated, or is not in the format this codec understands.
+     */
+    static Association read(DataInput in) throws IOException {
+        int v = in.readUnsignedByte();
+        if (v!=VERSION)
+            throw new IOException("Unsupported association format version: "+v);
+
+        String handle = in.readUTF();
+        String type = in.readUTF();
+        byte[] key = new byte[in.readUnsignedShort()];
+        in.readFully(key);
+        Date expiry = new Date(in.readLong());
+
+        if (Association.TYPE_HMAC_SHA1.equals(type))
+            return Association.createHmacSha1(handle, key, expiry);
+        if (Association.TYPE_HMAC_SHA256.equals(type))
+            return Association.createHmacSha256(handle, key, expiry);
+        throw new IOException("Unsupported association type: "+type);
+    }
+
+    /**
+     * Current format version. Deliberately different from the first byte of the Java serialization
+     * stream header (0xAC), so that the two formats can be told apart.
+     */
+    static final int VERSION = 1;
+}
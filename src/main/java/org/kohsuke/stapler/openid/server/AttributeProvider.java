@@ -0,0 +1,15 @@
+package org.kohsuke.stapler.openid.server;
+
+/**
+ * Computes the value of an attribute sent to the client via the AX or SReg extension.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see AttributeRegistry
+ */
+public interface AttributeProvider {
+    /**
+     * @return
+     *      null if the user doesn't have this attribute, in which case nothing is sent to the client.
+     */
+    String getValue(OpenIDIdentity id);
+}
@@ -0,0 +1,96 @@
+package org.kohsuke.stapler.openid.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps AX type URIs and SReg field names to {@link AttributeProvider}s, which determines
+ * what attributes {@link Session} sends back to the client in response to fetch requests.
+ *
+ * <p>
+ * Applications can {@linkplain #registerAx(String, AttributeProvider) register} additional attributes
+ * through {@link OpenIDServer#attributes}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class AttributeRegistry {
+    private final Map<String,AttributeProvider> ax = new ConcurrentHashMap<String,AttributeProvider>();
+    private final Map<String,AttributeProvider> sreg = new ConcurrentHashMap<String,AttributeProvider>();
+
+    /**
+     * Creates a registry with the attributes that {@link Session} has always sent already registered,
+     * which are the AX e-mail address, nickname, first and last name, and the SReg nickname.
+     *
+     * <p>
+     * Other attributes, like the SReg "email" and "fullname" or the AX "namePerson",
+     * are only disclosed to RPs if the application registers them explicitly,
+     * for example with {@link #FULL_NAME}.
+     */
+    public AttributeRegistry() {
+        registerAx("http://axschema.org/contact/email", EMAIL);
+        registerAx("http://schema.openid.net/contact/email", EMAIL);
+        registerAx("http://axschema.org/namePerson/friendly", NICK);
+        registerAx("http://axschema.org/namePerson/first", FIRST_NAME);
+        registerAx("http://axschema.org/namePerson/last", LAST_NAME);
+
+        registerSReg("nickname", NICK);
+    }
+
+    /**
+     * Registers the provider for the given AX type URI, replacing the existing one, if any.
+     */
+    public void registerAx(String typeUri, AttributeProvider provider) {
+        ax.put(typeUri, provider);
+    }
+
+    /**
+     * Registers the provider for the given SReg field name, like "dob", replacing the existing one, if any.
+     */
+    public void registerSReg(String name, AttributeProvider provider) {
+        sreg.put(name, provider);
+    }
+
+    /**
+     * @return null if no such attribute is registered.
+     */
+    public AttributeProvider getAx(String typeUri) {
+        return ax.get(typeUri);
+    }
+
+    /**
+     * @return null if no such attribute is registered.
+     */
+    public AttributeProvider getSReg(String name) {
+        return sreg.get(name);
+    }
+
+    public static final AttributeProvider NICK = new AttributeProvider() {
+        public String getValue(OpenIDIdentity id) {
+            return id.getNick();
+        }
+    };
+
+    public static final AttributeProvider EMAIL = new AttributeProvider() {
+        public String getValue(OpenIDIdentity id) {
+            return id.getEmail();
+        }
+    };
+
+    public static final AttributeProvider FULL_NAME = new AttributeProvider() {
+        public String getValue(OpenIDIdentity id) {
+            return id.getFullName();
+        }
+    };
+
+    public static final AttributeProvider FIRST_NAME = new AttributeProvider() {
+        public String getValue(OpenIDIdentity id) {
+            return id.getFirstName();
+        }
+    };
+
+    public static final AttributeProvider LAST_NAME = new AttributeProvider() {
+        public String getValue(OpenIDIdentity id) {
+            return id.getLastName();
+        }
+    };
+}
@@ -0,0 +1,140 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.server.ServerAssociationStore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ServerAssociationStore} decorator that keeps recently used associations in memory,
+ * for stores where {@link #load(String)} is costly, like {@link FileSystemAssociationStore}.
+ * Wrap the store before setting it to {@link OpenIDServer#setAssociationStores(ServerAssociationStore, ServerAssociationStore)}.
+ *
+ * <p>
+ * Lookups of unknown handles are remembered for a short while, too, so that a client
+ * repeatedly sending a bogus handle doesn't hit the underlying store every time.
+ *
+ * <p>
+ * The cache holds at most the given number of entries, evicting the least recently used one.
+ * Cached associations are dropped once they expire.
+ *
+ * <p>
+ * Only the changes made through this object are reflected in the cache. So if the underlying store is shared
+ * with other nodes, an association removed by another node can still be served from here, and one generated
+ * by another node can be reported as unknown for up to the negative TTL.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class CachingAssociationStore implements ServerAssociationStore {
+    private final ServerAssociationStore base;
+    private final long negativeTtl;
+    private final Map<String,Entry> cache;
+
+    /**
+     * Number of {@link #remove(String)} calls so far. Guarded by {@link #cache}.
+     */
+    private long removals;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param base
+     *      The store that actually stores associations.
+     * @param maxEntries
+     *      Maximum number of handles (known or unknown) to keep in memory.
+     * @param negativeTtlMillis
+     *      How long to remember that a handle was unknown.
+     */
+    public CachingAssociationStore(ServerAssociationStore base, final int maxEntries, long negativeTtlMillis) {
+        this.base = base;
+        this.negativeTtl = negativeTtlMillis;
+        this.cache = new LinkedHashMap<String,Entry>(16,0.75f,true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                return size()>maxEntries;
+            }
+        };
+    }
+
+    public CachingAssociationStore(ServerAssociationStore base) {
+        this(base, 10000, TimeUnit.SECONDS.toMillis(10));
+    }
+
+    public Association generate(String type, int expiryIn) throws AssociationException {
+        Association a = base.generate(type, expiryIn);
+        put(a.getHandle(), new Entry(a, a.getExpiry().getTime()));
+        return a;
+    }
+
+    public Association load(String handle) {
+        long now = System.currentTimeMillis();
+        long generation;
+        synchronized (cache) {
+            Entry e = cache.get(handle);
+            if (e!=null) {
+                if (e.expiry>=now) {
+                    hits.incrementAndGet();
+                    return e.association;
+                }
+                cache.remove(handle);
+            }
+            generation = removals;
+        }
+
+        misses.incrementAndGet();
+        Association a = base.load(handle);
+        Entry e = a!=null && !a.hasExpired() ? new Entry(a, a.getExpiry().getTime()) : new Entry(null, now+negativeTtl);
+        synchronized (cache) {
+            // if something was removed while we were loading, what we've got might be the removed association
+            if (removals==generation)
+                cache.put(handle, e);
+        }
+        return a;
+    }
+
+    public void remove(String handle) {
+        base.remove(handle);
+        synchronized (cache) {
+            cache.remove(handle);
+            removals++;
+        }
+    }
+
+    private void put(String handle, Entry e) {
+        synchronized (cache) {
+            cache.put(handle, e);
+        }
+    }
+
+    /**
+     * Number of {@link #load(String)} calls answered from memory, including those for unknown handles.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of {@link #load(String)} calls that went to the underlying store.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static final class Entry {
+        /**
+         * Null if the handle is known to be unknown or invalid.
+         */
+        final Association association;
+        final long expiry;
+
+        Entry(Association association, long expiry) {
+            this.association = association;
+            this.expiry = expiry;
+        }
+    }
+}
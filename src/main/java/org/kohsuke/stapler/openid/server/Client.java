@@ -4,6 +4,10 @@ import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.openid.client.AuthenticationShell;
+import org.kohsuke.stapler.openid.client.ConsumerManagerFactory;
+import org.kohsuke.stapler.openid.client.VerificationExecutor;
+import org.kohsuke.stapler.openid.client.VerificationRejectedException;
 import org.openid4java.OpenIDException;
 import org.openid4java.consumer.*;
 import org.openid4java.discovery.DiscoveryInformation;
@@ -16,8 +20,10 @@ import org.openid4java.message.sreg.SRegRequest;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Test client.
@@ -31,9 +37,7 @@ public class Client {
 
     public Client() {
         try {
-            manager = new ConsumerManager();
-            manager.setAssociations(new InMemoryConsumerAssociationStore());
-            manager.setNonceVerifier(new InMemoryNonceVerifier(5000));
+            manager = ConsumerManagerFactory.DEFAULT.getShared();
         } catch (ConsumerException e) {
             throw new Error(e);
         }
@@ -123,8 +127,8 @@ public class Client {
                 receivingURL.append("?").append(request.getQueryString());
 
             // verify the response
-            VerificationResult verification = manager.verify(
-                    receivingURL.toString(), responselist, discovered);
+            VerificationResult verification = VerificationExecutor.DEFAULT.verify(
+                    manager, receivingURL.toString(), responselist, discovered);
 
             // examine the verification result and extract the verified identifier
             Identifier verified = verification.getVerifiedId();
@@ -140,6 +144,13 @@ public class Client {
             }
         } catch (OpenIDException e) {
             throw new Error(e);
+        } catch (VerificationRejectedException e) {
+            // never started, so the same response can be tried again
+            rsp.setHeader("Retry-After", String.valueOf(AuthenticationShell.RETRY_AFTER));
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many logins in progress. Please try again later.");
+        } catch (TimeoutException e) {
+            // the nonce may already be consumed, so retrying the same response won't help
+            throw HttpResponses.error(500, "Failed to login: the OpenID provider didn't respond in time");
         }
     }
 }
@@ -0,0 +1,150 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the parameters of an in-flight OpenID request into a signed, expiring token,
+ * so that the authentication sequence can be resumed on any node that shares the same secret,
+ * without keeping anything in the HTTP session.
+ *
+ * <p>
+ * The token is URL-safe Base64 of the following, followed by '.' and the URL-safe Base64 of its HMAC-SHA256:
+ * <pre>
+ * byte    version
+ * long    expiration time in milliseconds since the epoch
+ * int     number of parameters
+ * string  name, string value (repeated)
+ * </pre>
+ * where a string is an int byte length followed by the UTF-8 encoded characters,
+ * so that there's no limit on the length of values like "openid.return_to".
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class ContinuationToken {
+    private final SecretKeySpec key;
+    private final long ttl;
+
+    ContinuationToken(byte[] secret, long ttl) {
+        this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+        this.ttl = ttl;
+    }
+
+    /**
+     * Creates a token that carries the given request parameters.
+     */
+    String encode(ParameterList params) {
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeByte(VERSION);
+            out.writeLong(System.currentTimeMillis()+ttl);
+            List<Parameter> list = params.getParameters();
+            out.writeInt(list.size());
+            for (Parameter p : list) {
+                writeString(out, p.getKey());
+                writeString(out, p.getValue());
+            }
+            out.close();
+
+            byte[] payload = buf.toByteArray();
+            return base64(payload)+'.'+base64(mac(payload));
+        } catch (IOException e) {
+            throw new AssertionError(e);    // can't happen with a byte array
+        }
+    }
+
+    /**
+     * Verifies the token and recovers the request parameters from it.
+     *
+     * @return
+     *      null if the token is malformed, tampered with, or expired.
+     */
+    Map<String,String> decode(String token) {
+        if (token==null)    return null;
+        int idx = token.indexOf('.');
+        if (idx<0)          return null;
+
+        byte[] payload = unbase64(token.substring(0,idx));
+        byte[] mac = unbase64(token.substring(idx+1));
+        if (!MessageDigest.isEqual(mac, mac(payload)))
+            return null;
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int v = in.readUnsignedByte();
+            if (v!=VERSION)
+                return null;
+            if (in.readLong()<System.currentTimeMillis())
+                return null;    // expired
+            int n = in.readInt();
+            if (n<0 || n>payload.length)
+                return null;
+            Map<String,String> params = new HashMap<String,String>(n*2);
+            for (int i=0; i<n; i++)
+                params.put(readString(in), readString(in));
+            return params;
+        } catch (IOException e) {
+            return null;    // truncated
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len<0 || len>in.available())
+            throw new EOFException();
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    private byte[] mac(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);    // HmacSHA256 is always there
+        }
+    }
+
+    private static String base64(byte[] data) {
+        String s = new String(Base64.encodeBase64(data));
+        int end = s.length();
+        while (end>0 && s.charAt(end-1)=='=')
+            end--;
+        return s.substring(0,end).replace('+','-').replace('/','_');
+    }
+
+    private static byte[] unbase64(String s) {
+        StringBuilder buf = new StringBuilder(s.length()+3);
+        buf.append(s.replace('-','+').replace('_','/'));
+        while (buf.length()%4!=0)
+            buf.append('=');
+        return Base64.decodeBase64(buf.toString().getBytes());
+    }
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int VERSION = 2;
+}
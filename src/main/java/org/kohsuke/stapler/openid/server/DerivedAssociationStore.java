@@ -0,0 +1,263 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.server.ServerAssociationStore;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link ServerAssociationStore} for private associations (the ones used to sign assertions to RPs
+ * in the stateless mode) that doesn't store anything.
+ *
+ * <p>
+ * The handle encodes the association type and its expiration, and the MAC key is derived from
+ * the handle and a master secret. So {@link #generate(String, int)} only computes a handle, and
+ * {@link #load(String)} recomputes the association from it. Any node that has the same secret can
+ * verify assertions signed by any other, without any I/O or replication.
+ *
+ * <p>
+ * The handle looks like {@code SECRETID.T.EXPIRY.NONCE.TAG}. SECRETID identifies the master secret,
+ * T is the association type, EXPIRY is the expiration time in seconds since the epoch in hex,
+ * NONCE is random, and TAG authenticates the rest so that handles that we haven't issued are rejected.
+ *
+ * <p>
+ * The master secret can be rotated with {@link #rotate(byte[])}. Associations derived from the previous
+ * secret remain valid until they expire, as long as the secret isn't rotated again in the mean time.
+ *
+ * <p>
+ * OpenID uses a private association only once, in "check_authentication", after which it's {@link #remove(String) removed}
+ * so that the same assertion can't be verified again. Since there's nothing to delete, this store instead remembers
+ * the removed handles in memory until they expire, and {@link #load(String)} rejects them. The memory is bounded by
+ * {@link #setMaxRemembered(int)}: when it's full, the handles that expire the soonest are forgotten, and from then on
+ * all the handles that expire no later than those are rejected, whether they've been used or not. Those assertions
+ * then fail to verify, instead of becoming replayable.
+ *
+ * <p>
+ * The removed handles are only known to this JVM. If "check_authentication" requests can reach
+ * any of several nodes, an assertion verified by one can still be verified once by each of the others.
+ *
+ * <p>
+ * Don't use this for shared associations, since their keys have to be sent to RPs.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class DerivedAssociationStore implements ServerAssociationStore {
+    private volatile Secret current;
+    private volatile Secret previous;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Removed handles to their expiration time in seconds since the epoch, roughly in the order of the expiration.
+     */
+    private final LinkedHashMap<String,Long> removed = new LinkedHashMap<String,Long>();
+    /**
+     * Handles that expire at or before this time are treated as removed, because we had to forget some of those.
+     */
+    private long removedThrough;
+    private int maxRemembered = 100000;
+
+    /**
+     * @param secret
+     *      The master secret. All the nodes serving the same OpenID endpoint need to use the same secret,
+     *      and it must be kept confidential. 32 random bytes is a good choice.
+     */
+    public DerivedAssociationStore(byte[] secret) {
+        this.current = new Secret(secret);
+    }
+
+    /**
+     * Starts using a new master secret for new associations.
+     */
+    public synchronized void rotate(byte[] secret) {
+        previous = current;
+        current = new Secret(secret);
+    }
+
+    /**
+     * Maximum number of removed handles to remember. See the class documentation.
+     */
+    public void setMaxRemembered(int maxRemembered) {
+        synchronized (removed) {
+            this.maxRemembered = maxRemembered;
+        }
+    }
+
+    public Association generate(String type, int expiryIn) throws AssociationException {
+        char t;
+        if (Association.TYPE_HMAC_SHA1.equals(type))
+            t = SHA1;
+        else
+        if (Association.TYPE_HMAC_SHA256.equals(type))
+            t = SHA256;
+        else
+            throw new AssociationException("Unsupported association type: "+type);
+
+        long expiry = System.currentTimeMillis()/1000+expiryIn;
+        byte[] nonce = new byte[8];
+        random.nextBytes(nonce);
+
+        Secret s = current;
+        StringBuilder buf = new StringBuilder(80);
+        buf.append(s.id).append('.').append(t).append('.').append(Long.toHexString(expiry)).append('.');
+        hex(nonce, nonce.length, buf);
+        String body = buf.toString();
+        String handle = body+'.'+s.tag(body);
+
+        return create(s, handle, t, expiry);
+    }
+
+    public Association load(String handle) {
+        if (handle==null)   return null;
+
+        // SECRETID.T.EXPIRY.NONCE.TAG
+        int tagStart = handle.lastIndexOf('.');
+        if (tagStart<0)     return null;
+        String body = handle.substring(0,tagStart);
+
+        Secret s = findSecret(handle);
+        if (s==null)        return null;    // a secret that's rotated out, or a handle we haven't issued
+        try {
+            if (!MessageDigest.isEqual(s.tag(body).getBytes("US-ASCII"), handle.substring(tagStart+1).getBytes("US-ASCII")))
+                return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+
+        // the handle is authentic, so the rest is well-formed
+        String[] tokens = body.split("\\.");
+        long expiry = Long.parseLong(tokens[2], 16);
+        if (expiry*1000<System.currentTimeMillis())
+            return null;
+        if (isRemoved(handle, expiry))
+            return null;
+        try {
+            return create(s, handle, tokens[1].charAt(0), expiry);
+        } catch (AssociationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the handle so that {@link #load(String)} rejects it from now on. See the class documentation.
+     */
+    public void remove(String handle) {
+        // only the handles that we've issued, so that garbage doesn't push the real ones out
+        Association a = load(handle);
+        if (a==null)    return;
+        long expiry = a.getExpiry().getTime()/1000;
+
+        synchronized (removed) {
+            removed.put(handle, expiry);
+            if (removed.size()<=maxRemembered)
+                return;
+
+            long now = System.currentTimeMillis()/1000;
+            for (Iterator<Long> itr = removed.values().iterator(); itr.hasNext();) {
+                if (itr.next()>=now)
+                    break;
+                itr.remove();   // expired, so load() rejects it anyway
+            }
+            while (removed.size()>maxRemembered) {
+                Iterator<Map.Entry<String,Long>> itr = removed.entrySet().iterator();
+                removedThrough = Math.max(removedThrough, itr.next().getValue());
+                itr.remove();
+            }
+        }
+    }
+
+    private boolean isRemoved(String handle, long expiry) {
+        synchronized (removed) {
+            return expiry<=removedThrough || removed.containsKey(handle);
+        }
+    }
+
+    private Secret findSecret(String handle) {
+        Secret s = current;
+        if (handle.startsWith(s.id+'.'))   return s;
+        s = previous;
+        if (s!=null && handle.startsWith(s.id+'.'))   return s;
+        return null;
+    }
+
+    private Association create(Secret s, String handle, char type, long expiry) throws AssociationException {
+        byte[] key = s.derive("k"+handle);
+        Date exp = new Date(expiry*1000);
+        switch (type) {
+        case SHA1:
+            byte[] k = new byte[20];
+            System.arraycopy(key, 0, k, 0, k.length);
+            return Association.createHmacSha1(handle, k, exp);
+        case SHA256:
+            return Association.createHmacSha256(handle, key, exp);
+        default:
+            throw new AssociationException("Unsupported association type: "+type);
+        }
+    }
+
+    private static void hex(byte[] data, int len, StringBuilder buf) {
+        for (int i=0; i<len; i++) {
+            buf.append(HEX[(data[i]>>4)&0xF]).append(HEX[data[i]&0xF]);
+        }
+    }
+
+    private static final class Secret {
+        private final SecretKeySpec key;
+        /**
+         * Derived from the secret itself, so that nodes don't need to agree on the numbering of secrets.
+         */
+        final String id;
+
+        Secret(byte[] secret) {
+            if (secret.length<16)
+                throw new IllegalArgumentException("Secret is too short");
+            this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+            StringBuilder buf = new StringBuilder(8);
+            hex(derive("id"), 4, buf);
+            this.id = buf.toString();
+        }
+
+        /**
+         * HMAC-SHA256 of the given text with the secret.
+         */
+        byte[] derive(String text) {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac.doFinal(text.getBytes("US-ASCII"));
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(e);    // HmacSHA256 is always there
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        String tag(String body) {
+            StringBuilder buf = new StringBuilder(TAG_LENGTH*2);
+            hex(derive("h"+body), TAG_LENGTH, buf);
+            return buf.toString();
+        }
+    }
+
+    private static final char SHA1 = '1';
+    private static final char SHA256 = '2';
+
+    /**
+     * Number of bytes of the MAC used to authenticate handles.
+     */
+    private static final int TAG_LENGTH = 12;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+}
@@ -0,0 +1,220 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches rendered views, such as the XRDS documents served to relying parties during the discovery,
+ * and serves them with validators so that clients can use conditional GETs.
+ *
+ * <p>
+ * A view is rendered once per key, then served from memory until it expires. Responses carry
+ * an ETag, Last-Modified and Cache-Control, and {@code If-None-Match}/{@code If-Modified-Since}
+ * requests are answered with 304 when the document hasn't changed.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class DocumentCache {
+    private final Map<String,Document> documents;
+
+    private volatile long ttl = TimeUnit.MINUTES.toMillis(10);
+    private volatile String cacheControl = "public, max-age=3600";
+
+    public DocumentCache(final int maxEntries) {
+        documents = new LinkedHashMap<String,Document>(16,0.75f,true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Document> eldest) {
+                return size()>maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets how long a rendered view is kept before it gets rendered again.
+     */
+    public void setTimeToLive(long ttl, TimeUnit unit) {
+        this.ttl = unit.toMillis(ttl);
+    }
+
+    /**
+     * Sets the value of the Cache-Control header, or null to not send it.
+     */
+    public void setCacheControl(String cacheControl) {
+        this.cacheControl = cacheControl;
+    }
+
+    /**
+     * Discards all the rendered views, for example when the data they are rendered from changes.
+     */
+    public void clear() {
+        synchronized (documents) {
+            documents.clear();
+        }
+    }
+
+    /**
+     * Serves the given view of the given object, rendering it only if it's not in the cache.
+     *
+     * @param key
+     *      Identifies the rendered document. Requests that would render the same document should use the same key.
+     *      Don't use a value taken from the request as is, like the request path, or else clients can flood
+     *      the cache with keys of their choice and evict the real documents.
+     */
+    public void serve(String key, Object it, String view, StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        Document d;
+        synchronized (documents) {
+            d = documents.get(key);
+        }
+        if (d==null || d.expiry<System.currentTimeMillis()) {
+            d = render(it, view, req, rsp);
+            if (d==null)    return; // the view didn't produce a cacheable document, and it's already sent
+            synchronized (documents) {
+                documents.put(key, d);
+            }
+        }
+
+        rsp.setHeader("ETag", d.etag);
+        rsp.setDateHeader("Last-Modified", d.lastModified);
+        if (cacheControl!=null)
+            rsp.setHeader("Cache-Control", cacheControl);
+
+        if (d.isNotModified(req)) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (d.contentType!=null)
+            rsp.setContentType(d.contentType);
+        rsp.setContentLength(d.content.length);
+        rsp.getOutputStream().write(d.content);
+    }
+
+    /**
+     * Renders the view into memory.
+     *
+     * @return null if the view did something other than producing a document, like redirecting.
+     */
+    private Document render(Object it, String view, StaplerRequest req, final StaplerResponse rsp) throws IOException, ServletException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final String[] contentType = new String[1];
+        final boolean[] uncacheable = new boolean[1];
+        final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                buf.write(b);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+                buf.write(b, off, len);
+            }
+        };
+
+        // capture what's written, pass everything else through
+        StaplerResponse capture = (StaplerResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[]{StaplerResponse.class}, new InvocationHandler() {
+                private PrintWriter writer;
+
+                public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                    String n = m.getName();
+                    if (n.equals("getOutputStream") || n.equals("getCompressedOutputStream"))
+                        return out;
+                    if (n.equals("getWriter") || n.equals("getCompressedWriter")) {
+                        if (writer==null)
+                            writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+                        return writer;
+                    }
+                    if (n.equals("setContentType")) {
+                        String t = (String)args[0];
+                        if (t!=null && t.indexOf("charset")<0)
+                            t += ";charset=UTF-8";  // that's what we encode the writer in
+                        contentType[0] = t;
+                        return null;
+                    }
+                    if (n.equals("setCharacterEncoding"))
+                        return null;
+                    if (n.equals("flushBuffer")) {
+                        if (writer!=null)   writer.flush();
+                        return null;
+                    }
+                    if (n.startsWith("sendRedirect") || n.equals("sendError") || n.equals("setStatus") || n.startsWith("forward"))
+                        uncacheable[0] = true;
+                    try {
+                        return m.invoke(rsp, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+
+        req.getView(it, view).forward(req, capture);
+        capture.flushBuffer();
+
+        if (uncacheable[0]) {
+            rsp.getOutputStream().write(buf.toByteArray());
+            return null;
+        }
+        return new Document(buf.toByteArray(), contentType[0], System.currentTimeMillis()+ttl);
+    }
+
+    private static final class Document {
+        final byte[] content;
+        final String contentType;
+        final String etag;
+        /**
+         * HTTP dates have the second precision, so truncate to make the comparison work.
+         */
+        final long lastModified = System.currentTimeMillis()/1000*1000;
+        final long expiry;
+
+        Document(byte[] content, String contentType, long expiry) {
+            this.content = content;
+            this.contentType = contentType;
+            this.expiry = expiry;
+            this.etag = '"'+digest(content)+'"';
+        }
+
+        boolean isNotModified(StaplerRequest req) {
+            String inm = req.getHeader("If-None-Match");
+            if (inm!=null)
+                return inm.equals("*") || inm.contains(etag);
+            try {
+                long ims = req.getDateHeader("If-Modified-Since");
+                return ims>=0 && ims>=lastModified;
+            } catch (IllegalArgumentException e) {
+                return false;   // malformed date
+            }
+        }
+
+        private static String digest(byte[] content) {
+            try {
+                byte[] h = MessageDigest.getInstance("SHA-1").digest(content);
+                StringBuilder buf = new StringBuilder(h.length*2);
+                for (byte b : h) {
+                    buf.append(HEX[(b>>4)&0xF]).append(HEX[b&0xF]);
+                }
+                return buf.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);    // SHA-1 is always there
+            }
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+}
@@ -5,13 +5,29 @@ import org.openid4java.association.Association;
 import org.openid4java.association.AssociationException;
 import org.openid4java.server.ServerAssociationStore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Random;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -22,59 +38,298 @@ import java.util.regex.Pattern;
  * <p>
  * We use random long value as the handle and uses the hex encoded value (like D2D4DE6CAAA150AC)
  * as a file name. To avoid creating too many files in a single directory, the actual file name
- * will be D2/D4DE6CAAA150AC.
+ * will be D2/D4DE6CAAA150AC. Handles are drawn from a per-thread {@link SecureRandom}, and
+ * the uniqueness is guaranteed by creating the file exclusively, retrying with another handle on a collision.
+ * In the write-behind mode (see below), the handle is instead claimed atomically among the associations
+ * that are yet to be written, and then checked against the disk; the file itself is created later by the writer,
+ * so another JVM sharing the same directory in the write-behind mode relies on the 64 bit handles not colliding.
  *
  * <p>
- * Timestamp is set to the expiration date.
+ * Timestamp is set to the expiration date. The content is encoded by {@link AssociationCodec},
+ * and written atomically by renaming a temporary file into place.
  *
- * TODO: clean up expired associations from the disk
+ * <p>
+ * Expired associations are deleted lazily when they are loaded, and eagerly by {@link #sweep(int, long)},
+ * which walks the shard directories a few at a time. Use {@link #scheduleSweep(ScheduledExecutorService, long, TimeUnit)}
+ * to run it periodically.
+ *
+ * <p>
+ * By default, {@link #generate(String, int)} writes the new association to the disk before returning.
+ * {@link #setWriteBehind(int)} switches to the write-behind mode, where new associations are kept in memory
+ * and written by a background thread in batches, so that the disk latency doesn't slow down
+ * the "associate" requests. Associations not yet written are lost if the JVM crashes; the number of those
+ * is bounded, and {@link #close()} writes them all before returning. When a write fails, the association
+ * stays in memory and the writer retries it before taking any new ones, so that {@link #generate(String, int)}
+ * blocks instead of piling up more unwritten associations. If the writer doesn't make room in a few seconds,
+ * {@link #generate(String, int)} writes the association by itself, and fails if that doesn't work either.
  *
  * @author Kohsuke Kawaguchi
  */
-class FileSystemAssociationStore implements ServerAssociationStore {
+class FileSystemAssociationStore implements ServerAssociationStore, Closeable {
     private final File rootDir;
-    private static Random random = new Random();
+
+    /**
+     * In the write-behind mode, associations that are generated but not yet written to the disk.
+     */
+    private final ConcurrentMap<String,Association> pending = new ConcurrentHashMap<String,Association>();
+    /**
+     * Handles in {@link #pending} in the order they need to be written. Null unless in the write-behind mode.
+     */
+    private volatile BlockingQueue<String> queue;
+    private Thread writer;
 
     public FileSystemAssociationStore(File rootDir) {
         this.rootDir = rootDir;
     }
 
     private File getStoreOf(String handle) {
+        return new File(rootDir, handle.substring(0, 2) + '/' + handle.substring(2)+".dat");
+    }
+
+    /**
+     * Earlier versions of this class dropped the 3rd character of the handle from the file name.
+     * So handles that differ only in that character share the file, and whoever reads it needs to check
+     * the handle recorded in it.
+     *
+     * @return null if the handle isn't of the form that earlier versions generated.
+     */
+    private File getLegacyStoreOf(String handle) {
+        if (!LEGACY_HANDLE_PATTERN.matcher(handle).matches())
+            return null;
         return new File(rootDir, handle.substring(0, 2) + '/' + handle.substring(3)+".dat");
     }
 
     public Association generate(String type, int expiryIn) throws AssociationException {
-        String handle = String.format("%08X", random.nextLong());
-        Association association = Association.generate(type, handle, expiryIn);
+        BlockingQueue<String> q = queue;
+        for (int attempt=0; attempt<MAX_ATTEMPTS; attempt++) {
+            String handle = newHandle();
+            Association association = Association.generate(type, handle, expiryIn);
+            if (q!=null) {
+                // claim the handle in memory first, then check the disk. The synchronous branch does the same
+                // checks in the opposite order, so that two threads racing for the same handle can't both win
+                // even while the mode is being switched.
+                if (pending.putIfAbsent(handle, association)==null) {
+                    if (!getStoreOf(handle).exists())
+                        return enqueue(q, handle, association);
+                    pending.remove(handle, association);
+                }
+            } else {
+                File store = getStoreOf(handle);
+                store.getParentFile().mkdir();
+                try {
+                    if (!store.createNewFile())
+                        continue;   // collision. try another handle
+                    if (pending.containsKey(handle)) {
+                        store.delete();
+                        continue;   // collision with the one still waiting to be written
+                    }
+                    write(store, association);
+                } catch (IOException x) {
+                    store.delete();
+                    throw new AssociationException(x);
+                }
+                return association;
+            }
+        }
+        throw new AssociationException("Failed to allocate a unique association handle in "+rootDir);
+    }
 
-        File store = getStoreOf(handle);
-        store.getParentFile().mkdir();
+    /**
+     * Generates a random 64 bit handle, encoded in 16 hex digits.
+     */
+    private static String newHandle() {
+        long v = RANDOM.get().nextLong();
+        char[] buf = new char[16];
+        for (int i=15; i>=0; i--) {
+            buf[i] = HEX[(int)(v&0xF)];
+            v >>>= 4;
+        }
+        return new String(buf);
+    }
+
+    /**
+     * In the write-behind mode, hands the association that's already in {@link #pending} to the writer.
+     *
+     * <p>
+     * If the queue stays full for {@link #ENQUEUE_TIMEOUT}, the writer is most likely stuck retrying
+     * a failing write (think disk full), so rather than waiting forever, we write it ourselves and
+     * report the failure to the caller if that doesn't work either.
+     */
+    private Association enqueue(BlockingQueue<String> q, String handle, Association association) throws AssociationException {
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(store));
+            // blocks if too many are waiting to be written, but not after stopWriter() since nobody would take it
+            long deadline = System.currentTimeMillis()+ENQUEUE_TIMEOUT;
+            boolean queued;
+            while (!(queued=q.offer(handle, OFFER_INTERVAL, TimeUnit.MILLISECONDS)) && queue==q
+                    && System.currentTimeMillis()<deadline)
+                ;
+            if (!queued && !writePending(handle)) {
+                // the writer has stopped or is stuck before seeing it, and we couldn't write it either
+                pending.remove(handle);
+                throw new AssociationException("Failed to write the association to "+rootDir);
+            }
+            return association;
+        } catch (InterruptedException e) {
+            pending.remove(handle);
+            Thread.currentThread().interrupt();
+            throw new AssociationException("Interrupted while waiting for the association store", e);
+        }
+    }
+
+    /**
+     * Switches to the write-behind mode, or back to writing synchronously.
+     *
+     * @param maxPending
+     *      Maximum number of associations that are generated but not yet written to the disk,
+     *      which is also the most that can be lost in a crash. When this many are waiting,
+     *      {@link #generate(String, int)} blocks until the writer catches up.
+     *      0 to write synchronously.
+     */
+    public synchronized void setWriteBehind(int maxPending) throws InterruptedException {
+        stopWriter();
+        if (maxPending>0) {
+            queue = new LinkedBlockingQueue<String>(maxPending);
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    writeBehind(queue);
+                }
+            }, "Association writer for "+rootDir);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Writes all the pending associations to the disk, and stops the writer thread.
+     * After this method returns, the store keeps working in the synchronous mode.
+     *
+     * @throws IOException
+     *      if some of the pending associations couldn't be written. They remain usable from memory
+     *      until they expire, but won't survive a restart.
+     */
+    public void close() throws IOException {
+        int failed;
+        try {
+            synchronized (this) {
+                failed = stopWriter();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException)new IOException("Interrupted while writing pending associations").initCause(e);
+        }
+        if (failed>0)
+            throw new IOException("Failed to write "+failed+" associations to "+rootDir);
+    }
+
+    /**
+     * Number of associations waiting to be written to the disk.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return
+     *      Number of pending associations that couldn't be written.
+     */
+    private int stopWriter() throws InterruptedException {
+        BlockingQueue<String> q = queue;
+        if (q==null)    return 0;
+        queue = null;   // new associations are written synchronously from now on
+        writer.interrupt();
+        writer.join();
+        writer = null;
+
+        // this makes room for generate() blocked on the full queue, which then writes its own
+        q.drainTo(new ArrayList<String>());
+
+        // everything left in the queue, plus the ones that the writer was still retrying
+        int failed = 0;
+        for (String handle : pending.keySet()) {
+            if (!writePending(handle))
+                failed++;
+        }
+        return failed;
+    }
+
+    /**
+     * Body of the writer thread. Takes whatever has accumulated in the queue and writes them all at once.
+     * If some of them fail, retries those before taking more.
+     */
+    private void writeBehind(BlockingQueue<String> q) {
+        List<String> batch = new ArrayList<String>();
+        while (queue==q) {
             try {
-                oos.writeObject(association);
-            } finally {
-                IOUtils.closeQuietly(oos);
+                if (batch.isEmpty()) {
+                    batch.add(q.take());
+                    q.drainTo(batch, MAX_BATCH);
+                } else {
+                    Thread.sleep(RETRY_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                continue;   // stopWriter() interrupts us after it clears the queue field
             }
-            store.setLastModified(association.getExpiry().getTime());
-        } catch (IOException x) {
-            throw new AssociationException(x);
+
+            int size = batch.size();
+            for (Iterator<String> itr = batch.iterator(); itr.hasNext();) {
+                if (writePending(itr.next()))
+                    itr.remove();
+            }
+            if (size>1)
+                LOGGER.finer("Wrote "+(size-batch.size())+" of "+size+" associations to "+rootDir);
         }
+        // stopWriter() takes care of whatever is left
+    }
 
-        return association;
+    /**
+     * Writes the pending association, if it's still pending.
+     *
+     * @return
+     *      false if the write failed, in which case the association is still pending.
+     */
+    private boolean writePending(String handle) {
+        Association a = pending.get(handle);
+        if (a==null)    return true;    // already written or removed
+        synchronized (a) {
+            if (pending.get(handle)!=a)
+                return true;            // another thread wrote it while we were waiting
+            if (a.hasExpired()) {
+                pending.remove(handle, a);
+                return true;            // no point in writing it anymore
+            }
+            File store = getStoreOf(handle);
+            store.getParentFile().mkdir();
+            try {
+                write(store, a);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write "+store+". Will retry", e);
+                return false;
+            }
+            if (!pending.remove(handle, a))
+                store.delete();     // removed while we were writing it
+            return true;
+        }
     }
 
     public Association load(String handle) {
+        Association p = pending.get(handle);
+        if (p!=null)
+            return p.hasExpired() ? null : p;
+
         if (HANDLE_PATTERN.matcher(handle).matches()) {
             File f = getStoreOf(handle);
-            if (f.exists()) {
+            if (!f.exists())
+                f = getLegacyStoreOf(handle);
+            if (f!=null && f.exists()) {
                 if (isExpired(f)) {
                     f.delete();
                 } else {
                     // still active
                     try {
-                        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f));
-                        return (Association)ois.readObject();
+                        Association a = read(f);
+                        if (!a.getHandle().equals(handle))
+                            return null;    // a legacy file of another handle
+                        return a;
                     } catch (IOException e) {
                         LOGGER.log(Level.WARNING, "Failed to load "+f,e);
                         f.delete();
@@ -90,16 +345,226 @@ class FileSystemAssociationStore implements ServerAssociationStore {
         return null;
     }
 
+    /**
+     * Writes the association to a temporary file next to the destination, syncs it, then renames it into place,
+     * so that a crash never leaves a truncated record behind.
+     */
+    private void write(File store, Association association) throws IOException {
+        File tmp = new File(store.getPath()+".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            AssociationCodec.write(association, out);
+            out.flush();
+            fos.getFD().sync();     // otherwise the rename can reach the disk before the data does
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fos);
+            tmp.delete();
+            throw e;
+        }
+        fos.close();
+        if (!tmp.setLastModified(association.getExpiry().getTime())) {
+            tmp.delete();
+            throw new IOException("Failed to set the timestamp of "+tmp);
+        }
+        if (!tmp.renameTo(store) && !(store.delete() && tmp.renameTo(store))) {
+            // some platforms can't rename over the file that generate() created to claim the handle
+            tmp.delete();
+            throw new IOException("Failed to rename "+tmp+" to "+store);
+        }
+    }
+
+    private Association read(File f) throws IOException, ClassNotFoundException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first==AssociationCodec.VERSION)
+                return AssociationCodec.read(new DataInputStream(in));
+            // written by an earlier version of this class via Java serialization
+            return (Association)new ObjectInputStream(in).readObject();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Deletes expired association files from the disk.
+     *
+     * <p>
+     * Each call resumes from the file where the previous call left off,
+     * so a series of small passes eventually covers the whole store without
+     * ever scanning it all at once.
+     *
+     * @param maxFiles
+     *      Maximum number of files to examine in this pass.
+     * @param maxMillis
+     *      Maximum time to spend in this pass.
+     * @return
+     *      Number of files deleted in this pass.
+     */
+    public synchronized int sweep(int maxFiles, long maxMillis) {
+        final long deadline = System.currentTimeMillis()+maxMillis;
+        final long now = System.currentTimeMillis();
+        int examined = 0, reclaimed = 0;
+
+        while (examined<maxFiles && System.currentTimeMillis()<deadline) {
+            if (shards==null || sweepCursor>=shards.length) {
+                // start a new cycle over the shard directories
+                shards = rootDir.list();
+                sweepCursor = 0;
+                sweepAfter = null;
+                if (shards==null || shards.length==0)
+                    break;
+                Arrays.sort(shards);
+            }
+
+            File dir = new File(rootDir, shards[sweepCursor]);
+            String[] names = dir.list();
+            boolean completed = true;
+            if (names!=null) {
+                Arrays.sort(names);
+                // skip what the previous pass has already examined in this shard
+                int i = sweepAfter==null ? 0 : -Arrays.binarySearch(names, sweepAfter+'\0')-1;
+                for (; i<names.length; i++) {
+                    if (examined>=maxFiles || System.currentTimeMillis()>=deadline) {
+                        completed = false;
+                        break;
+                    }
+                    examined++;
+                    sweepAfter = names[i];
+                    File f = new File(dir, names[i]);
+                    if (isReclaimable(f, now) && f.delete())
+                        reclaimed++;
+                }
+            }
+            if (completed) {
+                sweepCursor++;  // otherwise resume from sweepAfter in this shard on the next pass
+                sweepAfter = null;
+            }
+            if (sweepCursor>=shards.length)
+                break;          // one full cycle per pass at most
+        }
+
+        totalReclaimed += reclaimed;
+        if (reclaimed>0)
+            LOGGER.fine("Reclaimed "+reclaimed+" expired associations from "+rootDir);
+        return reclaimed;
+    }
+
+    private boolean isReclaimable(File f, long now) {
+        String name = f.getName();
+        if (name.endsWith(".dat"))
+            return f.lastModified()<now;
+        if (name.endsWith(".tmp"))  // left behind by a crash in the middle of write()
+            return f.lastModified()<now-TimeUnit.MINUTES.toMillis(1);
+        return false;
+    }
+
+    /**
+     * Runs {@link #sweep(int, long)} periodically on the given executor.
+     *
+     * @return
+     *      The future that can be used to cancel the sweeping.
+     */
+    public ScheduledFuture<?> scheduleSweep(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep(SWEEP_MAX_FILES, SWEEP_MAX_MILLIS);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to sweep "+rootDir, e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Total number of expired association files deleted by {@link #sweep(int, long)} so far.
+     */
+    public synchronized long getReclaimedCount() {
+        return totalReclaimed;
+    }
+
     private boolean isExpired(File f) {
         return f.lastModified()<System.currentTimeMillis();
     }
 
     public void remove(String handle) {
-        if (HANDLE_PATTERN.matcher(handle).matches())
+        pending.remove(handle);
+        if (HANDLE_PATTERN.matcher(handle).matches()) {
             getStoreOf(handle).delete();
+            File f = getLegacyStoreOf(handle);
+            if (f!=null && f.exists()) {
+                try {
+                    if (!read(f).getHandle().equals(handle))
+                        return;     // a legacy file of another handle
+                } catch (IOException e) {
+                    // unreadable. delete it
+                } catch (ClassNotFoundException e) {
+                    // ditto
+                }
+                f.delete();
+            }
+        }
     }
 
-    private final Pattern HANDLE_PATTERN = Pattern.compile("[0-9A-Fa-f]+");
+    /**
+     * Shard directories of the current sweep cycle, the index of the next one to visit,
+     * and the name of the last file examined in it, if the previous pass stopped in the middle of it.
+     */
+    private String[] shards;
+    private int sweepCursor;
+    private String sweepAfter;
+    private long totalReclaimed;
+
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * How long the writer waits before retrying the associations that it failed to write.
+     */
+    private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * How often {@link #generate(String, int)} blocked on the full queue checks if the writer is still there.
+     */
+    private static final long OFFER_INTERVAL = 100;
+
+    /**
+     * How long {@link #generate(String, int)} waits for room in the queue before writing the association by itself.
+     */
+    private static final long ENQUEUE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private final Pattern HANDLE_PATTERN = Pattern.compile("[0-9A-Fa-f]{3,32}");
+
+    /**
+     * Handles generated by earlier versions, which were {@code String.format("%08X",random.nextLong())}.
+     */
+    private static final Pattern LEGACY_HANDLE_PATTERN = Pattern.compile("[0-9A-F]{8,16}");
+
+    /**
+     * {@link SecureRandom} is thread-safe but synchronized, so give each thread its own.
+     */
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * With 64 bit random handles, even the second attempt is practically never needed.
+     */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * Budget of a single scheduled sweep pass.
+     */
+    public static int SWEEP_MAX_FILES = Integer.getInteger(FileSystemAssociationStore.class.getName()+".sweepMaxFiles", 1000);
+    public static long SWEEP_MAX_MILLIS = Long.getLong(FileSystemAssociationStore.class.getName()+".sweepMaxMillis", 100L);
 
     private static final Logger LOGGER = Logger.getLogger(FileSystemAssociationStore.class.getName());
 }
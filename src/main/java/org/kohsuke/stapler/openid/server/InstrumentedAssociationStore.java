@@ -0,0 +1,48 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.kohsuke.stapler.openid.Metrics;
+import org.kohsuke.stapler.openid.Metrics.Event;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.server.ServerAssociationStore;
+
+/**
+ * Records the use of another {@link ServerAssociationStore} to {@link Metrics}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class InstrumentedAssociationStore implements ServerAssociationStore {
+    final ServerAssociationStore base;
+
+    InstrumentedAssociationStore(ServerAssociationStore base) {
+        this.base = base;
+    }
+
+    public Association generate(String type, int expiryIn) throws AssociationException {
+        long start = System.nanoTime();
+        try {
+            return base.generate(type, expiryIn);
+        } finally {
+            Metrics.INSTANCE.record(Event.ASSOCIATION_GENERATE, start);
+        }
+    }
+
+    public Association load(String handle) {
+        long start = System.nanoTime();
+        Association a = base.load(handle);
+        Metrics.INSTANCE.record(Event.ASSOCIATION_LOAD, start);
+
+        if (a==null)
+            Metrics.INSTANCE.count(Event.ASSOCIATION_MISS);
+        else
+        if (a.hasExpired())
+            Metrics.INSTANCE.count(Event.ASSOCIATION_EXPIRED);
+        else
+            Metrics.INSTANCE.count(Event.ASSOCIATION_HIT);
+        return a;
+    }
+
+    public void remove(String handle) {
+        base.remove(handle);
+    }
+}
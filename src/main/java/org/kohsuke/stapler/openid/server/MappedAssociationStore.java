@@ -0,0 +1,262 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.server.ServerAssociationStore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * {@link ServerAssociationStore} that keeps all the associations in a single preallocated,
+ * memory-mapped file, so that they survive restarts without a file per association.
+ * Set it to {@link OpenIDServer#setAssociationStores(ServerAssociationStore, ServerAssociationStore)}.
+ *
+ * <p>
+ * The file is divided into fixed-size slots, one association per slot. The handle to slot mapping
+ * is kept in memory (and rebuilt by scanning the file upon start up), so a lookup is a hash probe
+ * followed by a read from the mapped buffer, without any file system calls.
+ *
+ * <p>
+ * Slots of removed or expired associations are reused by subsequent {@link #generate(String, int)} calls.
+ * If every slot is occupied by a live association, {@link #generate(String, int)} fails.
+ * Slots that don't make sense, for example after a crash in the middle of a write, are treated as empty.
+ *
+ * <p>
+ * Changes reach the disk when the operating system gets around to it, or when {@link #flush()} is called.
+ * Only one instance can use the file at a time, in this JVM or any other. {@link #close()} releases it.
+ *
+ * <p>
+ * The layout of a slot is as follows:
+ * <pre>
+ * byte     type (0 for an empty slot, 1 for HMAC-SHA1, 2 for HMAC-SHA256)
+ * byte     length of the handle
+ * byte[32] handle in ASCII
+ * byte     length of the MAC key
+ * byte[32] MAC key
+ * long     expiration date in milliseconds since the epoch
+ * </pre>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class MappedAssociationStore implements ServerAssociationStore, Closeable {
+    private final File file;
+    private final int capacity;
+    private final RandomAccessFile raf;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Handle to slot index of live associations.
+     */
+    private final Map<String,Integer> index = new HashMap<String,Integer>();
+    /**
+     * Slots that are known to be available.
+     */
+    private final LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param file
+     *      File to store associations in. Created if it doesn't exist yet.
+     * @param capacity
+     *      Maximum number of associations that can be stored.
+     * @throws IOException
+     *      if the file can't be mapped, or is already in use by another instance.
+     */
+    public MappedAssociationStore(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            try {
+                lock = ch.tryLock();
+            } catch (OverlappingFileLockException e) {
+                throw (IOException)new IOException(file+" is already in use in this JVM").initCause(e);
+            }
+            if (lock==null)
+                throw new IOException(file+" is already in use by another process");
+            buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, (long)capacity*SLOT_SIZE);
+        } catch (IOException e) {
+            raf.close();    // also releases the lock
+            throw e;
+        }
+
+        // rebuild the index from what's already in the file
+        long now = System.currentTimeMillis();
+        for (int i=0; i<capacity; i++) {
+            int base = i*SLOT_SIZE;
+            String handle = isValid(base) && buffer.getLong(base+EXPIRY_OFFSET)>=now ? readHandle(base) : null;
+            if (handle!=null && !index.containsKey(handle))
+                index.put(handle, i);
+            else {
+                buffer.put(base, EMPTY);
+                freeSlots.add(i);
+            }
+        }
+    }
+
+    public synchronized Association generate(String type, int expiryIn) throws AssociationException {
+        byte typeCode = encodeType(type);
+
+        String handle;
+        do {
+            handle = Long.toHexString(random.nextLong()).toUpperCase();
+        } while (index.containsKey(handle));
+
+        Association a = Association.generate(type, handle, expiryIn);
+        byte[] key = a.getMacKey().getEncoded();
+        if (key.length>MAX_KEY)
+            throw new AssociationException("MAC key too long: "+key.length);
+
+        Integer slot = allocateSlot();
+        if (slot==null)
+            throw new AssociationException("All "+capacity+" association slots are in use in "+file);
+
+        int base = slot*SLOT_SIZE;
+        byte[] h = handle.getBytes();
+        buffer.put(base+1, (byte)h.length);
+        for (int i=0; i<h.length; i++)
+            buffer.put(base+HANDLE_OFFSET+i, h[i]);
+        buffer.put(base+KEY_LEN_OFFSET, (byte)key.length);
+        for (int i=0; i<key.length; i++)
+            buffer.put(base+KEY_OFFSET+i, key[i]);
+        buffer.putLong(base+EXPIRY_OFFSET, a.getExpiry().getTime());
+        buffer.put(base, typeCode);   // write the type last, which marks the slot as used
+
+        index.put(handle, slot);
+        return a;
+    }
+
+    public synchronized Association load(String handle) {
+        Integer slot = index.get(handle);
+        if (slot==null)     return null;
+
+        int base = slot*SLOT_SIZE;
+        if (!isValid(base)) {
+            LOGGER.warning("Corrupted association slot "+slot+" in "+file);
+            release(handle, slot);
+            return null;
+        }
+        long expiry = buffer.getLong(base+EXPIRY_OFFSET);
+        if (expiry<System.currentTimeMillis()) {
+            release(handle, slot);
+            return null;
+        }
+
+        byte[] key = new byte[buffer.get(base+KEY_LEN_OFFSET)];
+        for (int i=0; i<key.length; i++)
+            key[i] = buffer.get(base+KEY_OFFSET+i);
+
+        if (buffer.get(base)==HMAC_SHA1)
+            return Association.createHmacSha1(handle, key, new Date(expiry));
+        else
+            return Association.createHmacSha256(handle, key, new Date(expiry));
+    }
+
+    public synchronized void remove(String handle) {
+        Integer slot = index.get(handle);
+        if (slot!=null)
+            release(handle, slot);
+    }
+
+    /**
+     * Forces the changes in the mapped file to the disk.
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Flushes the changes and releases the file for another instance.
+     * The mapping itself stays until it's garbage collected, so don't use this store afterward.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        raf.close();    // also releases the lock
+    }
+
+    private void release(String handle, int slot) {
+        buffer.put(slot*SLOT_SIZE, EMPTY);
+        index.remove(handle);
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Finds an available slot, reclaiming expired ones if there's no free slot left.
+     */
+    private Integer allocateSlot() {
+        if (freeSlots.isEmpty()) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String,Integer>> itr = index.entrySet().iterator(); itr.hasNext();) {
+                int slot = itr.next().getValue();
+                int base = slot*SLOT_SIZE;
+                if (buffer.getLong(base+EXPIRY_OFFSET)<now) {
+                    buffer.put(base, EMPTY);
+                    itr.remove();
+                    freeSlots.add(slot);
+                }
+            }
+        }
+        return freeSlots.poll();
+    }
+
+    /**
+     * Checks if the slot is in use and its type and lengths make sense, so that it can be read.
+     */
+    private boolean isValid(int base) {
+        byte type = buffer.get(base);
+        int handleLen = buffer.get(base+1);
+        int keyLen = buffer.get(base+KEY_LEN_OFFSET);
+        return (type==HMAC_SHA1 || type==HMAC_SHA256)
+            && handleLen>0 && handleLen<=MAX_HANDLE
+            && keyLen>0 && keyLen<=MAX_KEY;
+    }
+
+    /**
+     * Only for slots that are {@linkplain #isValid(int) valid}.
+     */
+    private String readHandle(int base) {
+        byte[] h = new byte[buffer.get(base+1)];
+        for (int i=0; i<h.length; i++)
+            h[i] = buffer.get(base+HANDLE_OFFSET+i);
+        return new String(h);
+    }
+
+    private static byte encodeType(String type) throws AssociationException {
+        if (Association.TYPE_HMAC_SHA1.equals(type))     return HMAC_SHA1;
+        if (Association.TYPE_HMAC_SHA256.equals(type))   return HMAC_SHA256;
+        throw new AssociationException("Unsupported association type: "+type);
+    }
+
+    private static final byte EMPTY = 0;
+    private static final byte HMAC_SHA1 = 1;
+    private static final byte HMAC_SHA256 = 2;
+
+    private static final int MAX_HANDLE = 32;
+    private static final int MAX_KEY = 32;
+
+    private static final int HANDLE_OFFSET = 2;
+    private static final int KEY_LEN_OFFSET = HANDLE_OFFSET+MAX_HANDLE;
+    private static final int KEY_OFFSET = KEY_LEN_OFFSET+1;
+    private static final int EXPIRY_OFFSET = KEY_OFFSET+MAX_KEY;
+    private static final int SLOT_SIZE = EXPIRY_OFFSET+8;
+
+    private static final Logger LOGGER = Logger.getLogger(MappedAssociationStore.class.getName());
+}
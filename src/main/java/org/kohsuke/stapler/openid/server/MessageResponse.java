@@ -4,13 +4,22 @@ import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.openid4java.message.Message;
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
 
 /**
  * {@link Message} as {@link HttpResponse}
  *
+ * <p>
+ * The message is sent in the key-value form encoding. It's encoded into UTF-8 bytes
+ * in a per-thread buffer and sent with the exact Content-Length, so that the client
+ * can keep the connection alive without the chunked encoding.
+ *
  * @author Kohsuke Kawaguchi
  */
 class MessageResponse implements HttpResponse {
@@ -21,7 +30,119 @@ class MessageResponse implements HttpResponse {
     }
 
     public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
-        rsp.setContentType("text/plain");
-        rsp.getWriter().print(msg.keyValueFormEncoding());
+        Buffer buf = BUFFER.get();
+        buf.reset();
+        for (Parameter p : parametersOf(msg)) {
+            buf.append(p.getKey());
+            buf.append(':');
+            buf.append(p.getValue());
+            buf.append('\n');
+        }
+
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.setContentLength(buf.size);
+        rsp.getOutputStream().write(buf.bytes, 0, buf.size);
+
+        if (buf.bytes.length>MAX_RETAINED)
+            BUFFER.remove();    // don't hold on to an unusually large buffer
+    }
+
+    /**
+     * Parameters of the message in order. {@link Message#getParameterMap()} would copy them into a new map,
+     * so go to the {@link ParameterList} behind the message, which openid4java doesn't expose publicly.
+     */
+    private static List<Parameter> parametersOf(Message msg) {
+        if (PARAMS!=null) {
+            try {
+                return ((ParameterList)PARAMS.get(msg)).getParameters();
+            } catch (IllegalAccessException e) {
+                // fall through
+            }
+        }
+        return new ParameterList(msg.getParameterMap()).getParameters();
+    }
+
+    /**
+     * Growable byte array that UTF-8 encodes characters appended to it.
+     */
+    private static final class Buffer {
+        byte[] bytes = new byte[1024];
+        int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        void append(String s) {
+            int len = s.length();
+            for (int i=0; i<len; i++) {
+                char c = s.charAt(i);
+                if (c<0x80) {
+                    ensure(1);
+                    bytes[size++] = (byte)c;
+                } else
+                if (c<0x800) {
+                    ensure(2);
+                    bytes[size++] = (byte)(0xC0|(c>>6));
+                    bytes[size++] = (byte)(0x80|(c&0x3F));
+                } else
+                if (Character.isHighSurrogate(c) && i+1<len && Character.isLowSurrogate(s.charAt(i+1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    ensure(4);
+                    bytes[size++] = (byte)(0xF0|(cp>>18));
+                    bytes[size++] = (byte)(0x80|((cp>>12)&0x3F));
+                    bytes[size++] = (byte)(0x80|((cp>>6)&0x3F));
+                    bytes[size++] = (byte)(0x80|(cp&0x3F));
+                } else
+                if (c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE) {
+                    ensure(1);
+                    bytes[size++] = '?';    // unpaired surrogate, same as what String.getBytes does
+                } else {
+                    ensure(3);
+                    bytes[size++] = (byte)(0xE0|(c>>12));
+                    bytes[size++] = (byte)(0x80|((c>>6)&0x3F));
+                    bytes[size++] = (byte)(0x80|(c&0x3F));
+                }
+            }
+        }
+
+        void append(char c) {
+            ensure(1);
+            bytes[size++] = (byte)c;
+        }
+
+        private void ensure(int n) {
+            if (size+n>bytes.length) {
+                byte[] b = new byte[Math.max(bytes.length*2, size+n)];
+                System.arraycopy(bytes, 0, b, 0, size);
+                bytes = b;
+            }
+        }
+    }
+
+    private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private static final int MAX_RETAINED = 64*1024;
+
+    /**
+     * {@code Message._params}, or null if this version of openid4java doesn't have it.
+     */
+    private static final Field PARAMS;
+    static {
+        Field f = null;
+        try {
+            f = Message.class.getDeclaredField("_params");
+            f.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            // use the slow path
+        } catch (SecurityException e) {
+            // ditto
+        }
+        PARAMS = f;
     }
 }
@@ -4,10 +4,14 @@ import org.kohsuke.stapler.AttributeKey;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerFallback;
+import org.kohsuke.stapler.openid.Metrics;
 import org.openid4java.server.InMemoryServerAssociationStore;
+import org.openid4java.server.ServerAssociationStore;
 import org.openid4java.server.ServerManager;
 
 import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * OpenID server that allows users to use their Jenkins identity as an OpenID.
@@ -17,6 +21,11 @@ import java.net.URL;
 public abstract class OpenIDServer implements StaplerFallback {
     final ServerManager manager =new ServerManager();
 
+    /**
+     * Signs and verifies assertions with the associations in {@link #manager}.
+     */
+    final MacEngine macs = new MacEngine(manager);
+
     /**
      * The URL of this endpoint, like "http://foo:8080/"
      */
@@ -25,34 +34,128 @@ public abstract class OpenIDServer implements StaplerFallback {
     // test client
     public final Client client = new Client();
 
-    private final AttributeKey<Session> session = AttributeKey.sessionScoped();
+    /**
+     * Attributes sent to clients in response to AX and SReg fetch requests.
+     */
+    public final AttributeRegistry attributes = new AttributeRegistry();
+
+    /**
+     * Rendered XRDS documents, served to relying parties during the discovery.
+     */
+    public final DocumentCache documents = new DocumentCache(16);
+
+    /**
+     * In-flight authentication sequences. The HTTP session only holds the ticket to the {@link Session} in here.
+     */
+    public final SessionRegistry sessions = new SessionRegistry(10000, 30, TimeUnit.MINUTES);
+
+    private final AttributeKey<String> ticket = AttributeKey.sessionScoped();
+
+    /**
+     * Non-null in the stateless mode.
+     */
+    private volatile ContinuationToken continuations;
+
+    private final AtomicBoolean shutdown = new AtomicBoolean();
 
     public OpenIDServer(URL address) {
         this.address = address;
         if (!address.toExternalForm().endsWith("/"))
             throw new IllegalStateException("URL must end with '/': "+address);
-        manager.setSharedAssociations(new InMemoryServerAssociationStore());
-        manager.setPrivateAssociations(new InMemoryServerAssociationStore());
+        setAssociationStores(new InMemoryServerAssociationStore(), new InMemoryServerAssociationStore());
         manager.setOPEndpointUrl(address+"entryPoint");
+        Metrics.INSTANCE.register();
         // Can't set the expiration date. see http://code.google.com/p/openid4java/issues/detail?id=186
         // manager.setExpireIn((int)TimeUnit.DAYS.toSeconds(180));
     }
 
+    /**
+     * Replaces the default in-memory association stores, for example with {@link ReplicatedAssociationStore}
+     * when multiple nodes serve the same OpenID endpoint behind a load balancer.
+     * This needs to be called before the server starts serving requests.
+     * The use of the stores is recorded to {@link Metrics}.
+     *
+     * @param shared
+     *      Stores associations established with RPs via the "associate" mode.
+     * @param privateAssociations
+     *      Stores associations used to sign responses to RPs in the stateless mode.
+     *      {@link DerivedAssociationStore} needs no storage or replication for these.
+     */
+    public void setAssociationStores(ServerAssociationStore shared, ServerAssociationStore privateAssociations) {
+        manager.setSharedAssociations(new InstrumentedAssociationStore(shared));
+        manager.setPrivateAssociations(new InstrumentedAssociationStore(privateAssociations));
+    }
+
+    /**
+     * Switches to the stateless mode, where nothing is kept in the HTTP session. Instead, the in-flight
+     * request is carried through the login in a signed, expiring token (see {@link Session#getContinuation()}),
+     * so that any node sharing the same secret can resume the authentication sequence,
+     * and the provider can run behind a load balancer without session affinity.
+     *
+     * <p>
+     * The nodes also need to share the associations, see {@link #setAssociationStores(ServerAssociationStore, ServerAssociationStore)}.
+     *
+     * @param secret
+     *      Key used to sign the tokens. All the nodes must use the same secret, and it must be kept confidential.
+     * @param ttl
+     *      How long the user has to complete the login before the token expires.
+     */
+    public void setStateless(byte[] secret, long ttl, TimeUnit unit) {
+        continuations = new ContinuationToken(secret, unit.toMillis(ttl));
+    }
+
+    public boolean isStateless() {
+        return continuations!=null;
+    }
+
+    ContinuationToken getContinuations() {
+        return continuations;
+    }
+
+    /**
+     * Returns the session in progress for the current HTTP session, or else a new one.
+     * A new session isn't remembered yet, since most requests (discovery, "associate", "check_authentication")
+     * complete right away. See {@link #keep(Session)}.
+     */
     public Session getStaplerFallback() {
-        Session o = session.get();
+        if (isStateless())
+            return createSession();
+
+        Session o = sessions.get(ticket.get());
         if (o==null)
-            session.set(o=createSession());
+            o = createSession();
         return o;
     }
 
+    /**
+     * Remembers the session in the current HTTP session, so that it can be picked up again
+     * after the user logs in. Called when the session is about to send the user away.
+     */
+    void keep(Session s) {
+        if (isStateless())  return;
+        String t = ticket.get();
+        if (t==null || sessions.get(t)!=s)
+            ticket.set(sessions.register(s));
+    }
+
     /**
      * Creates a new session object (called for each HTTP session, whenever we need to start the
      * new authentication sequence.)
      */
     protected abstract Session createSession();
 
+    /**
+     * Releases the resources held outside this object. Call this when the application shuts down.
+     * Calling it more than once has no further effect.
+     */
+    public void shutdown() {
+        if (shutdown.compareAndSet(false,true))
+            Metrics.INSTANCE.unregister();
+    }
+
     public HttpResponse doLogout() {
-        session.set(null);
+        sessions.remove(ticket.get());
+        ticket.set(null);
         return HttpResponses.ok();
     }
 }
@@ -0,0 +1,422 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.server.ServerAssociationStore;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link ServerAssociationStore} that replicates associations to other nodes of an OpenID provider cluster,
+ * so that a request can be handled by any node regardless of which node created the association.
+ *
+ * <p>
+ * Every node keeps all the associations in memory and {@link #load(String)} is served locally.
+ * When an association is generated or removed, the change is pushed to all the
+ * {@linkplain #addPeer(SocketAddress) peers} over a plain TCP connection, and {@link #generate(String, int)}
+ * and {@link #remove(String)} return only after every reachable peer has acknowledged it. So by the time
+ * the association handle is handed out, any node can serve the next request without sticky routing.
+ * A node that is down when the change is made will not see it, and an unreachable peer is skipped
+ * for a while instead of slowing down every request, so this is a best-effort replication.
+ *
+ * <p>
+ * Every update is authenticated with an HMAC over a secret shared by all the nodes, and updates
+ * that fail the check are dropped, so only the nodes that know the secret can plant or revoke associations.
+ * The protocol still carries MAC keys in the clear, and a captured update can be replayed,
+ * so the port must only be reachable from the trusted network the cluster runs in.
+ *
+ * <p>
+ * Multiple nodes can run in the same JVM by binding them to different ports of the loop-back
+ * interface, which is handy for testing.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ReplicatedAssociationStore implements ServerAssociationStore, Closeable {
+    private final ConcurrentMap<String,Association> associations = new ConcurrentHashMap<String,Association>();
+    private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+    private final SecureRandom random = new SecureRandom();
+
+    private final SecretKeySpec secret;
+
+    private final ServerSocket serverSocket;
+    /**
+     * Sends updates to peers, one at a time, so that they are delivered in order.
+     */
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(DAEMON);
+    /**
+     * Connections accepted from peers, which {@link #close()} needs to shut down.
+     */
+    private final Set<Socket> connections = new HashSet<Socket>();
+
+    private volatile boolean closed;
+
+    /**
+     * @param bindAddress
+     *      Address to listen to for updates from other nodes. Use port 0 to pick an available port.
+     * @param secret
+     *      The secret that authenticates updates. All the nodes of the cluster need to use the same secret,
+     *      and it must be kept confidential. 32 random bytes is a good choice.
+     */
+    public ReplicatedAssociationStore(InetSocketAddress bindAddress, byte[] secret) throws IOException {
+        if (secret.length<16)
+            throw new IllegalArgumentException("Secret is too short");
+        this.secret = new SecretKeySpec(secret.clone(), MAC_ALGORITHM);
+        newMac();   // fail early if HMAC isn't available
+
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress);
+
+        Thread t = DAEMON.newThread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        });
+        t.setName("OpenID association replication listener on "+getLocalAddress());
+        t.start();
+    }
+
+    /**
+     * The address this node receives updates at, which other nodes should {@linkplain #addPeer(SocketAddress) add}.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress)serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Adds another node that receives the updates made on this node.
+     */
+    public void addPeer(SocketAddress address) {
+        peers.add(new Peer(address));
+    }
+
+    public Association generate(String type, int expiryIn) throws AssociationException {
+        Association a;
+        do {
+            a = Association.generate(type, Long.toHexString(random.nextLong()).toUpperCase(), expiryIn);
+        } while (associations.putIfAbsent(a.getHandle(), a)!=null);
+
+        final Association assoc = a;
+        broadcast(new Update() {
+            public void write(DataOutputStream out) throws IOException {
+                out.writeByte(PUT);
+                AssociationCodec.write(assoc, out);
+            }
+        });
+        return a;
+    }
+
+    public Association load(String handle) {
+        Association a = associations.get(handle);
+        if (a!=null && a.hasExpired()) {
+            associations.remove(handle, a);
+            return null;
+        }
+        return a;
+    }
+
+    public void remove(final String handle) {
+        if (associations.remove(handle)==null)
+            return;
+        broadcast(new Update() {
+            public void write(DataOutputStream out) throws IOException {
+                out.writeByte(REMOVE);
+                out.writeUTF(handle);
+            }
+        });
+    }
+
+    /**
+     * Stops listening for updates, and drops the connections from and to peers,
+     * which stops the threads receiving updates from them.
+     */
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        synchronized (connections) {
+            for (Socket s : connections)
+                closeQuietly(s);
+            connections.clear();
+        }
+        try {
+            sender.execute(new Runnable() {
+                public void run() {
+                    for (Peer p : peers)
+                        p.disconnect();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // already closed
+        }
+        sender.shutdown();
+        try {
+            sender.awaitTermination(CONNECT_TIMEOUT+ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the update to all the peers, and waits until they have applied it or failed.
+     */
+    private void broadcast(Update u) {
+        if (peers.isEmpty())    return;
+
+        final byte[] frame;
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            u.write(out);
+            byte[] payload = buf.toByteArray();
+            buf.reset();
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.write(newMac().doFinal(payload));
+            frame = buf.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);    // writing to memory
+        }
+
+        try {
+            sender.submit(new Runnable() {
+                public void run() {
+                    for (Peer p : peers)
+                        p.send(frame);
+                }
+            }).get();
+        } catch (RejectedExecutionException e) {
+            // closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to replicate an association", e.getCause());
+        }
+        purgeExpired();
+    }
+
+    /**
+     * Associations are only removed from memory when they are looked up, so occasionally
+     * make a pass to drop the ones that expired without ever being looked up again.
+     */
+    private void purgeExpired() {
+        if (random.nextInt(PURGE_INTERVAL)!=0)  return;
+        for (Iterator<Association> itr = associations.values().iterator(); itr.hasNext();)
+            if (itr.next().hasExpired())
+                itr.remove();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                final Socket s = serverSocket.accept();
+                synchronized (connections) {
+                    if (closed) {
+                        closeQuietly(s);
+                        return;
+                    }
+                    connections.add(s);
+                }
+                Thread t = DAEMON.newThread(new Runnable() {
+                    public void run() {
+                        receive(s);
+                    }
+                });
+                t.setName("OpenID association replication from "+s.getRemoteSocketAddress());
+                t.start();
+            } catch (IOException e) {
+                if (!closed)
+                    LOGGER.log(Level.WARNING, "Failed to accept a replication connection", e);
+            }
+        }
+    }
+
+    /**
+     * Receives updates from a peer. Each update is a frame of:
+     * <pre>
+     * int      length of the payload
+     * byte[]   payload, which is an opcode followed by its operand
+     * byte[]   HMAC of the payload
+     * </pre>
+     * and is acknowledged with a single byte.
+     */
+    private void receive(Socket s) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream ack = new DataOutputStream(s.getOutputStream());
+            Mac mac = newMac();
+            byte[] digest = new byte[mac.getMacLength()];
+            while (!closed) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException e) {
+                    return; // peer went away
+                }
+                if (len<=0 || len>MAX_FRAME)
+                    throw new IOException("Unexpected replication frame length: "+len);
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                in.readFully(digest);
+                if (closed)
+                    return; // closing the socket doesn't always stop a read that's already in progress
+
+                if (!MessageDigest.isEqual(mac.doFinal(payload), digest)) {
+                    LOGGER.warning("Dropped an unauthenticated replication update from "+s.getRemoteSocketAddress());
+                    ack.writeByte(REJECTED);
+                    continue;
+                }
+
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+                int op = frame.readUnsignedByte();
+                switch (op) {
+                case PUT:
+                    Association a = AssociationCodec.read(frame);
+                    associations.put(a.getHandle(), a);
+                    break;
+                case REMOVE:
+                    associations.remove(frame.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unexpected replication opcode: "+op);
+                }
+                ack.writeByte(ACCEPTED);
+            }
+        } catch (IOException e) {
+            if (!closed)
+                LOGGER.log(Level.WARNING, "Replication connection from "+s.getRemoteSocketAddress()+" failed", e);
+        } finally {
+            synchronized (connections) {
+                connections.remove(s);
+            }
+            closeQuietly(s);
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);    // HmacSHA256 is always there
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        if (s==null)    return;
+        try {
+            s.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private interface Update {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Outbound connection to another node, established lazily and re-established after a failure.
+     * Only accessed from the {@link #sender} thread.
+     */
+    private final class Peer {
+        private final SocketAddress address;
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        /**
+         * After a failure, updates aren't sent to this peer until this time.
+         */
+        private long retryAt;
+
+        Peer(SocketAddress address) {
+            this.address = address;
+        }
+
+        void send(byte[] frame) {
+            if (socket==null && System.currentTimeMillis()<retryAt)
+                return;
+            try {
+                if (socket==null) {
+                    socket = new Socket();
+                    socket.connect(address, CONNECT_TIMEOUT);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(ACK_TIMEOUT);
+                    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    in = new DataInputStream(socket.getInputStream());
+                }
+                out.write(frame);
+                out.flush();
+                if (in.readUnsignedByte()!=ACCEPTED)
+                    LOGGER.warning(address+" rejected a replication update. Does it use the same secret?");
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to replicate an association to "+address, e);
+                disconnect();
+                retryAt = System.currentTimeMillis()+RETRY_INTERVAL;
+            }
+        }
+
+        void disconnect() {
+            closeQuietly(socket);
+            socket = null;
+            out = null;
+            in = null;
+        }
+    }
+
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+
+    private static final int ACCEPTED = 0;
+    private static final int REJECTED = 1;
+
+    private static final int MAX_FRAME = 4096;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int ACK_TIMEOUT = 5000;
+    private static final int RETRY_INTERVAL = 10000;
+    private static final int PURGE_INTERVAL = 1000;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final ThreadFactory DAEMON = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final Logger LOGGER = Logger.getLogger(ReplicatedAssociationStore.class.getName());
+}
@@ -0,0 +1,126 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.openid4java.OpenIDException;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.DirectError;
+import org.openid4java.message.IndirectError;
+import org.openid4java.message.Message;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.MessageExtension;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchRequest;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegRequest;
+import org.openid4java.server.ServerManager;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Parameters of an OpenID request, parsed once and shared by everyone who processes the request.
+ *
+ * <p>
+ * The authentication request (including the realm verification) and its extensions are
+ * parsed lazily, upon the first access, since not every mode needs them.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class RequestContext {
+    private final ServerManager manager;
+
+    final ParameterList params;
+    final String mode;
+    final String returnTo;
+    /**
+     * See {@link Session#getRealm()}
+     */
+    final String realm;
+
+    private AuthRequest authRequest;
+    private FetchRequest axRequest;
+    private SRegRequest sregRequest;
+    private boolean extensionsParsed;
+
+    RequestContext(ServerManager manager, Map parameters) {
+        this.manager = manager;
+        this.params = new ParameterList(parameters);
+        this.mode = params.getParameterValue("openid.mode");
+        this.returnTo = params.getParameterValue("openid.return_to");
+
+        String realm = params.getParameterValue("openid.realm");
+        if (realm==null && returnTo!=null)
+            try {
+                realm = new URL(returnTo).getHost();
+            } catch (MalformedURLException e) {
+                realm = returnTo; // fall back
+            }
+        this.realm = realm;
+    }
+
+    /**
+     * Parses the parameters as an authentication request, which also verifies the return URL against the realm.
+     */
+    AuthRequest getAuthRequest() throws MessageException {
+        if (authRequest==null)
+            authRequest = AuthRequest.createAuthRequest(params, manager.getRealmVerifier());
+        return authRequest;
+    }
+
+    /**
+     * Creates the error message that reports the problem with this request back to the RP,
+     * the same way {@link ServerManager#authResponse(ParameterList, String, String, boolean)} does:
+     * an {@link IndirectError} to be sent through the browser if we know where to send it, or else a {@link DirectError}.
+     */
+    Message createError(OpenIDException e) {
+        boolean compatibility = !Message.OPENID2_NS.equals(params.getParameterValue("openid.ns"));
+        if (returnTo!=null)
+            return IndirectError.createIndirectError(e, returnTo, compatibility);
+        else
+            return DirectError.createDirectError(e, compatibility);
+    }
+
+    /**
+     * @return null if the request doesn't contain an AX fetch request.
+     */
+    FetchRequest getAxRequest() throws MessageException {
+        parseExtensions();
+        return axRequest;
+    }
+
+    /**
+     * @return null if the request doesn't contain an SReg request.
+     */
+    SRegRequest getSRegRequest() throws MessageException {
+        parseExtensions();
+        return sregRequest;
+    }
+
+    /**
+     * Discards the parsed objects, which can be recreated from {@link #params} when needed again.
+     */
+    void compact() {
+        authRequest = null;
+        axRequest = null;
+        sregRequest = null;
+        extensionsParsed = false;
+    }
+
+    private void parseExtensions() throws MessageException {
+        if (extensionsParsed)   return;
+
+        AuthRequest authReq = getAuthRequest();
+        if (authReq.hasExtension(AxMessage.OPENID_NS_AX)) {
+            MessageExtension ext = authReq.getExtension(AxMessage.OPENID_NS_AX);
+            if (ext instanceof FetchRequest)
+                axRequest = (FetchRequest) ext;
+        }
+        if (authReq.hasExtension(SRegMessage.OPENID_NS_SREG)) {
+            MessageExtension ext = authReq.getExtension(SRegMessage.OPENID_NS_SREG);
+            if (ext instanceof SRegRequest)
+                sregRequest = (SRegRequest) ext;
+        }
+        extensionsParsed = true;
+    }
+}
@@ -2,19 +2,20 @@ package org.kohsuke.stapler.openid.server;
 
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.openid.Metrics;
+import org.kohsuke.stapler.openid.Metrics.Event;
+import org.kohsuke.stapler.openid.Metrics.Failure;
 import org.openid4java.association.AssociationException;
 import org.openid4java.message.AuthRequest;
 import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.IndirectError;
 import org.openid4java.message.Message;
 import org.openid4java.message.MessageException;
-import org.openid4java.message.MessageExtension;
-import org.openid4java.message.ParameterList;
-import org.openid4java.message.ax.AxMessage;
 import org.openid4java.message.ax.FetchRequest;
 import org.openid4java.message.ax.FetchResponse;
-import org.openid4java.message.sreg.SRegMessage;
 import org.openid4java.message.sreg.SRegRequest;
 import org.openid4java.message.sreg.SRegResponse;
 import org.openid4java.server.ServerException;
@@ -23,8 +24,6 @@ import org.openid4java.server.ServerManager;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -40,10 +39,10 @@ public abstract class Session {
     public final OpenIDServer server;
     private final ServerManager manager;
 
-    private ParameterList requestp;
-    private String mode;
-    private String realm;
-    private String returnTo;
+    /**
+     * The request that started this conversation.
+     */
+    private RequestContext request;
 
     /**
      * OpenID URL of this user.
@@ -63,14 +62,14 @@ public abstract class Session {
      * This value can be trusted, even though it came from the client.
      */
     public String getRealm() {
-        return realm;
+        return request!=null ? request.realm : null;
     }
 
     /**
      * URL to send the user back to, once the authentication is complete.
      */
     public String getReturnTo() {
-        return returnTo;
+        return request!=null ? request.returnTo : null;
     }
 
     /**
@@ -88,18 +87,36 @@ public abstract class Session {
      */
     public HttpResponse doEntryPoint(StaplerRequest request) throws IOException {
         // these are the invariants during the whole conversation
-        requestp = new ParameterList(request.getParameterMap());
-        mode = requestp.getParameterValue("openid.mode");
-        realm = requestp.getParameterValue("openid.realm");
-        returnTo = requestp.getParameterValue("openid.return_to");
-
-        if (realm==null && returnTo!=null)
-            try {
-                realm = new URL(returnTo).getHost();
-            } catch (MalformedURLException e) {
-                realm = returnTo; // fall back
-            }
+        this.request = new RequestContext(manager, request.getParameterMap());
+        return handleRequest();
+    }
 
+    /**
+     * In the {@linkplain OpenIDServer#setStateless(byte[], long, java.util.concurrent.TimeUnit) stateless mode},
+     * returns the token that captures the request that started this conversation. The token needs to be
+     * carried through the login, and passed back to {@link #doResume(String)} on any node to continue
+     * where we left off, instead of calling {@link #handleRequest()} on this object.
+     *
+     * @return
+     *      null if the server isn't in the stateless mode or no request is in progress.
+     */
+    public String getContinuation() {
+        ContinuationToken c = server.getContinuations();
+        if (c==null || request==null)   return null;
+        return c.encode(request.params);
+    }
+
+    /**
+     * Resumes the conversation from the token obtained from {@link #getContinuation()}.
+     */
+    public HttpResponse doResume(@QueryParameter String token) {
+        ContinuationToken c = server.getContinuations();
+        if (c==null)
+            throw HttpResponses.error(HttpServletResponse.SC_NOT_FOUND, "Not in the stateless mode");
+        Map<String,String> params = c.decode(token);
+        if (params==null)
+            throw HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, "Invalid or expired continuation token");
+        this.request = new RequestContext(manager, params);
         return handleRequest();
     }
 
@@ -113,7 +130,8 @@ public abstract class Session {
      * or throw an {@link HttpResponse} as an exception. The caller will use this
      * {@link HttpResponse} as a response to the client.
      * After such authentication, the {@link #handleRequest()} must be called to pick up the OpenID
-     * dance where we left off.
+     * dance where we left off (or in the stateless mode, the user needs to be sent to {@link #doResume(String)}
+     * with {@link #getContinuation() the token}.)
      * <p>
      * If the user is already authenticated on the server side, then the {@link OpenIDIdentity} object
      * should be populated with the information about the user, and this method shall return null.
@@ -125,70 +143,120 @@ public abstract class Session {
      */
     protected abstract HttpResponse authenticateUser(OpenIDIdentity id);
 
+    /**
+     * Continues the OpenID dance with the request that started this conversation.
+     * The latency and failures are recorded to {@link Metrics} by the mode.
+     */
     public HttpResponse handleRequest() {
+        String mode = request!=null ? request.mode : null;
+        Event event = eventOf(mode);
+        long start = System.nanoTime();
         try {
             if ("associate".equals(mode)) {
                // --- process an association request ---
-                return new MessageResponse(manager.associationResponse(requestp));
+                return new MessageResponse(manager.associationResponse(request.params));
             } else
             if ("checkid_setup".equals(mode) || "checkid_immediate".equals(mode)) {
+                // reject a malformed request, or one whose return_to doesn't match the realm, before making the user log in
+                AuthRequest authReq;
+                try {
+                    authReq = request.getAuthRequest();
+                } catch (MessageException e) {
+                    Metrics.INSTANCE.failure(event, Failure.MESSAGE);
+                    Message err = request.createError(e);
+                    if (err instanceof IndirectError)
+                        return HttpResponses.redirectTo(err.getDestinationUrl(true));
+                    return new MessageResponse(err);
+                }
+
                 // if the user hasn't logged in to us yet, this will make them do so
-                HttpResponse r = authenticateUser(identity = new OpenIDIdentity());
-                if (r!=null)        return r;
+                HttpResponse r;
+                try {
+                    r = authenticateUser(identity = new OpenIDIdentity());
+                } catch (RuntimeException e) {
+                    if (e instanceof HttpResponse)
+                        suspend();
+                    throw e;
+                }
+                if (r!=null) {
+                    suspend();
+                    return r;
+                }
 
                 String openId = identity.getOpenId(server);
-                Message rsp = manager.authResponse(requestp, openId, openId, true);
+                Message rsp = manager.authResponse(authReq, openId, openId, true, manager.getOPEndpointUrl(), false);
                 respondToFetchRequest(rsp);
                 if (rsp instanceof  AuthSuccess) {
-                    // Need to sign after because SReg extension parameters are signed by openid4java
+                    // Sign after adding the extensions because SReg extension parameters are signed by openid4java
                     try {
-                        manager.sign((AuthSuccess)rsp);
+                        server.macs.sign((AuthSuccess)rsp);
                     } catch (ServerException e) {
+                        Metrics.INSTANCE.failure(event, Failure.OTHER);
                         throw HttpResponses.error(500, e);
                     } catch (AssociationException e) {
+                        Metrics.INSTANCE.failure(event, Failure.ASSOCIATION);
                         throw HttpResponses.error(500, e);
                     }
                 }
 
                 return HttpResponses.redirectTo(rsp.getDestinationUrl(true));
             } else if ("check_authentication".equals(mode)) {
-                return new MessageResponse(manager.verify(requestp));
+                return new MessageResponse(server.macs.verify(request.params));
             } else {
+                Metrics.INSTANCE.failure(event, Failure.MESSAGE);
                 throw HttpResponses.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unknown request: " + mode);
             }
         } catch (MessageException e) {
+            Metrics.INSTANCE.failure(event, Failure.MESSAGE);
             e.printStackTrace();
             throw HttpResponses.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
+        } finally {
+            Metrics.INSTANCE.record(event, start);
         }
     }
 
+    /**
+     * The user is sent away to log in, so get ready to pick up where we left off when they come back.
+     */
+    private void suspend() {
+        // the user might take a while to come back, if ever, so only keep the raw parameters
+        request.compact();
+        server.keep(this);
+    }
+
+    private static Event eventOf(String mode) {
+        if ("associate".equals(mode))
+            return Event.PROVIDER_ASSOCIATE;
+        if ("checkid_setup".equals(mode) || "checkid_immediate".equals(mode))
+            return Event.PROVIDER_CHECKID;
+        if ("check_authentication".equals(mode))
+            return Event.PROVIDER_CHECK_AUTHENTICATION;
+        return Event.PROVIDER_UNKNOWN;
+    }
+
     /**
      * Responds to the fetch request by adding them.
+     * What attributes are sent is determined by {@link OpenIDServer#attributes}.
      *
      * Java.net only gives us the ID, and everything else is just mechanically derived from it,
      * so there's no need to get the confirmation from users for passing them.
      */
     protected void respondToFetchRequest(Message rsp) throws MessageException {
-        AuthRequest authReq = AuthRequest.createAuthRequest(requestp, manager.getRealmVerifier());
-        if (authReq.hasExtension(AxMessage.OPENID_NS_AX)) {
-            MessageExtension ext = authReq.getExtension(AxMessage.OPENID_NS_AX);
-            if (ext instanceof FetchRequest)
-                rsp.addExtension(respondToAx((FetchRequest) ext));
-        }
-        if (authReq.hasExtension(SRegMessage.OPENID_NS_SREG)) {
-            MessageExtension ext = authReq.getExtension(SRegMessage.OPENID_NS_SREG);
-            if (ext instanceof SRegRequest)
-                rsp.addExtension(respondToSReg((SRegRequest) ext));
-        }
+        FetchRequest ax = request.getAxRequest();
+        if (ax!=null)
+            rsp.addExtension(respondToAx(ax));
+        SRegRequest sreg = request.getSRegRequest();
+        if (sreg!=null)
+            rsp.addExtension(respondToSReg(sreg));
     }
 
     protected SRegResponse respondToSReg(SRegRequest req) throws MessageException {
         SRegResponse srsp = SRegResponse.createFetchResponse();
 
         for (String name : (List<String>)req.getAttributes()) {
-            if (name.equals("nickname"))
-                addSRegResponse(srsp, name, identity.getNick());
-            // TODO: we probably need to add more
+            AttributeProvider p = server.attributes.getSReg(name);
+            if (p!=null)
+                addSRegResponse(srsp, name, p.getValue(identity));
         }
         return srsp;
     }
@@ -202,16 +270,9 @@ public abstract class Session {
         FetchResponse fr = FetchResponse.createFetchResponse();
 
         for (Map.Entry<String,String> e : ((Map<String,String>) req.getAttributes()).entrySet()) {
-            if (e.getValue().equals("http://axschema.org/contact/email")
-            ||  e.getValue().equals("http://schema.openid.net/contact/email"))
-                addAxResponse(fr, e, identity.getEmail());
-            if (e.getValue().equals("http://axschema.org/namePerson/friendly"))
-                addAxResponse(fr, e, identity.getNick());
-            if (e.getValue().equals("http://axschema.org/namePerson/first"))
-                addAxResponse(fr, e, identity.getFirstName());
-            if (e.getValue().equals("http://axschema.org/namePerson/last"))
-                addAxResponse(fr, e, identity.getLastName());
-            // TODO: we probably need to add more
+            AttributeProvider p = server.attributes.getAx(e.getValue());
+            if (p!=null)
+                addAxResponse(fr, e, p.getValue(identity));
         }
         return fr;
     }
@@ -223,10 +284,13 @@ public abstract class Session {
 
     /**
      * "/~USERID" is mapped to OpenID.
+     * The XRDS document is rendered once and then served from {@link OpenIDServer#documents}.
+     * It's the same for all the users, so it's cached under a single key no matter what the path is.
      */
     public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
-        if (req.getRestOfPath().startsWith("/~"))
-            req.getView(server,"xrds.jelly").forward(req,rsp);
+        String path = req.getRestOfPath();
+        if (path.startsWith("/~"))
+            server.documents.serve("xrds", server, "xrds.jelly", req, rsp);
         else
             rsp.setStatus(rsp.SC_NOT_FOUND);
     }
@@ -0,0 +1,112 @@
+package org.kohsuke.stapler.openid.server;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps in-flight {@link Session}s outside the HTTP session.
+ *
+ * <p>
+ * The HTTP session only holds a short random ticket, which keeps it small for replication,
+ * while the {@link Session} itself lives here. The number of sessions is capped, evicting
+ * the least recently used one, and a session that hasn't been used for the idle timeout
+ * is discarded, so abandoned logins don't stay on the heap for the lifetime of the HTTP session.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class SessionRegistry {
+    private final LinkedHashMap<String,Entry> sessions = new LinkedHashMap<String,Entry>(16,0.75f,true);
+    private final SecureRandom random = new SecureRandom();
+
+    private int maxSize;
+    private long idleTimeout;
+
+    public SessionRegistry(int maxSize, long idleTimeout, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.idleTimeout = unit.toMillis(idleTimeout);
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+        this.idleTimeout = unit.toMillis(idleTimeout);
+    }
+
+    /**
+     * Adds a new session.
+     *
+     * @return
+     *      The ticket to retrieve the session with.
+     */
+    public synchronized String register(Session s) {
+        purge();
+
+        String ticket;
+        do {
+            ticket = Long.toHexString(random.nextLong())+Long.toHexString(random.nextLong());
+        } while (sessions.containsKey(ticket));
+
+        sessions.put(ticket, new Entry(s));
+        while (sessions.size()>maxSize) {
+            Iterator<Entry> itr = sessions.values().iterator();
+            itr.next();
+            itr.remove();
+        }
+        return ticket;
+    }
+
+    /**
+     * @return
+     *      null if no such session exists, or if it has been discarded.
+     */
+    public synchronized Session get(String ticket) {
+        if (ticket==null)   return null;
+        Entry e = sessions.get(ticket);
+        if (e==null)        return null;
+        long now = System.currentTimeMillis();
+        if (now-e.lastAccess>idleTimeout) {
+            sessions.remove(ticket);
+            return null;
+        }
+        e.lastAccess = now;
+        return e.session;
+    }
+
+    public synchronized void remove(String ticket) {
+        if (ticket!=null)
+            sessions.remove(ticket);
+    }
+
+    /**
+     * Number of in-flight sessions.
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Removes idle sessions. Since the map is in the access order, they are all at the head.
+     */
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> itr = sessions.values().iterator(); itr.hasNext();) {
+            if (now-itr.next().lastAccess<=idleTimeout)
+                break;
+            itr.remove();
+        }
+    }
+
+    private static final class Entry {
+        final Session session;
+        long lastAccess = System.currentTimeMillis();
+
+        Entry(Session session) {
+            this.session = session;
+        }
+    }
+}
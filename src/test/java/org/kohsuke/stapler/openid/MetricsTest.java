@@ -0,0 +1,55 @@
+package org.kohsuke.stapler.openid;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class MetricsTest {
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Test
+    public void staysRegisteredUntilTheLastOwnerUnregisters() throws Exception {
+        assertTrue(Metrics.INSTANCE.register());
+        assertTrue(Metrics.INSTANCE.register());
+        ObjectName n = Metrics.INSTANCE.getObjectName();
+        assertTrue(server.isRegistered(n));
+
+        Metrics.INSTANCE.unregister();
+        assertTrue(server.isRegistered(n));
+        Metrics.INSTANCE.unregister();
+        assertFalse(server.isRegistered(n));
+        assertNull(Metrics.INSTANCE.getObjectName());
+
+        Metrics.INSTANCE.unregister();  // unbalanced calls are ignored
+        assertTrue(Metrics.INSTANCE.register());
+        assertTrue(server.isRegistered(Metrics.INSTANCE.getObjectName()));
+        Metrics.INSTANCE.unregister();
+    }
+
+    /**
+     * Another web application in the same container has its own copy of {@link Metrics}.
+     */
+    @Test
+    public void nameTakenByAnotherCopyIsAvoided() throws Exception {
+        ObjectName taken = new ObjectName(Metrics.OBJECT_NAME);
+        server.registerMBean(new StandardMBean(new Runnable() {
+            public void run() {}
+        }, Runnable.class), taken);
+        try {
+            assertTrue(Metrics.INSTANCE.register());
+            assertEquals(new ObjectName(Metrics.OBJECT_NAME+",instance=1"), Metrics.INSTANCE.getObjectName());
+            Metrics.INSTANCE.unregister();
+            assertTrue("the other copy is left alone", server.isRegistered(taken));
+        } finally {
+            server.unregisterMBean(taken);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class FileConsumerAssociationStoreTest {
+    private static final String OP = "https://op.example.com/server";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("associations", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void associationsSurviveRestart() throws Exception {
+        Association a = Association.generateHmacSha256("h1", 600);
+        new FileConsumerAssociationStore(dir).save(OP, a);
+
+        FileConsumerAssociationStore s = new FileConsumerAssociationStore(dir);
+        Association b = s.load(OP, "h1");
+        assertNotNull(b);
+        assertEquals(a.getType(), b.getType());
+        assertArrayEquals(a.getMacKey().getEncoded(), b.getMacKey().getEncoded());
+        assertEquals(a.getExpiry(), b.getExpiry());
+        assertSame(b, s.load(OP));
+        assertNull(s.load("https://other.example.com/", "h1"));
+    }
+
+    @Test
+    public void associationSavedByAnotherInstanceIsFound() throws Exception {
+        FileConsumerAssociationStore s = new FileConsumerAssociationStore(dir);
+        new FileConsumerAssociationStore(dir).save(OP, Association.generateHmacSha1("h1", 600));
+        assertNotNull(s.load(OP, "h1"));
+    }
+
+    @Test
+    public void latestUnexpiredAssociationIsPicked() throws Exception {
+        FileConsumerAssociationStore s = new FileConsumerAssociationStore(dir);
+        s.save(OP, Association.generateHmacSha1("short", 60));
+        s.save(OP, Association.generateHmacSha1("long", 600));
+        s.save(OP, Association.generateHmacSha1("expired", -1));
+        assertEquals("long", s.load(OP).getHandle());
+        assertNull(s.load(OP, "expired"));
+        assertEquals(2, filesIn(dir).size());
+    }
+
+    @Test
+    public void removeDeletesTheFile() throws Exception {
+        FileConsumerAssociationStore s = new FileConsumerAssociationStore(dir);
+        s.save(OP, Association.generateHmacSha1("h1", 600));
+        s.remove(OP, "h1");
+        assertNull(s.load(OP, "h1"));
+        assertNull(new FileConsumerAssociationStore(dir).load(OP, "h1"));
+        assertTrue(filesIn(dir).isEmpty());
+    }
+
+    @Test
+    public void staleTemporaryFilesAreCleanedUp() throws Exception {
+        new FileConsumerAssociationStore(dir).save(OP, Association.generateHmacSha1("h1", 600));
+        File dat = filesIn(dir).get(0);
+        File stale = new File(dat.getPath()+".tmp");
+        FileUtils.writeStringToFile(stale, "garbage");
+        stale.setLastModified(System.currentTimeMillis()-3600*1000);
+
+        assertNotNull(new FileConsumerAssociationStore(dir).load(OP, "h1"));
+        assertFalse(stale.exists());
+        assertTrue(dat.exists());
+    }
+
+    @Test
+    public void corruptedFileIsIgnored() throws Exception {
+        new FileConsumerAssociationStore(dir).save(OP, Association.generateHmacSha1("h1", 600));
+        File dat = filesIn(dir).get(0);
+        long expiry = dat.lastModified();
+        FileUtils.writeStringToFile(dat, "garbage");
+        dat.setLastModified(expiry);
+
+        assertNull(new FileConsumerAssociationStore(dir).load(OP, "h1"));
+        assertFalse(dat.exists());
+    }
+
+    private static List<File> filesIn(File dir) {
+        List<File> r = new ArrayList<File>();
+        for (File d : dir.listFiles())
+            for (File f : d.listFiles())
+                r.add(f);
+        return r;
+    }
+}
@@ -0,0 +1,53 @@
+package org.kohsuke.stapler.openid.client;
+
+import org.junit.Test;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.ParameterList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class OpenIDIdentityTest {
+    @Test
+    public void longAttributesSurviveSerialization() throws Exception {
+        char[] buf = new char[40000];
+        Arrays.fill(buf, '\u00e9');     // 80KB in UTF-8, beyond what writeUTF can handle
+        String nick = new String(buf);
+
+        Map<String,String> m = new HashMap<String,String>();
+        m.put("openid.ns", "http://specs.openid.net/auth/2.0");
+        m.put("openid.mode", "id_res");
+        m.put("openid.op_endpoint", "http://op.example.com/");
+        m.put("openid.claimed_id", "http://op.example.com/alice");
+        m.put("openid.identity", "http://op.example.com/alice");
+        m.put("openid.return_to", "http://rp.example.org/finishLogin");
+        m.put("openid.response_nonce", "2026-10-17T00:00:00Zabc");
+        m.put("openid.assoc_handle", "h1");
+        m.put("openid.signed", "op_endpoint,claimed_id,identity,return_to,response_nonce,assoc_handle,ns.sreg,sreg.nickname");
+        m.put("openid.sig", "AAAA");
+        m.put("openid.ns.sreg", "http://openid.net/sreg/1.0");
+        m.put("openid.sreg.nickname", nick);
+        OpenIDIdentity id = new OpenIDIdentity(AuthSuccess.createAuthSuccess(new ParameterList(m)));
+        assertEquals(nick, id.getNick());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(id);
+        oos.close();
+        OpenIDIdentity copy = (OpenIDIdentity)new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+
+        assertEquals("http://op.example.com/alice", copy.getOpenID());
+        assertEquals(nick, copy.getNick());
+        assertEquals(id.getAttributes(), copy.getAttributes());
+    }
+}
@@ -0,0 +1,107 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.server.InMemoryServerAssociationStore;
+import org.openid4java.server.ServerAssociationStore;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class CachingAssociationStoreTest {
+    private final CountingStore base = new CountingStore();
+    private final CachingAssociationStore cache = new CachingAssociationStore(base, 100, 60000);
+
+    @Test
+    public void generatedAssociationIsServedFromMemory() throws Exception {
+        Association a = cache.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertSame(a, cache.load(a.getHandle()));
+        assertSame(a, cache.load(a.getHandle()));
+        assertEquals(0, base.loads.get());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void missGoesToTheUnderlyingStoreOnce() throws Exception {
+        Association a = base.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertNotNull(cache.load(a.getHandle()));
+        assertNotNull(cache.load(a.getHandle()));
+        assertEquals(1, base.loads.get());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void unknownHandleIsRemembered() throws Exception {
+        assertNull(cache.load("bogus"));
+        assertNull(cache.load("bogus"));
+        assertEquals(1, base.loads.get());
+    }
+
+    @Test
+    public void removeDropsTheCachedAssociation() throws Exception {
+        Association a = cache.generate(Association.TYPE_HMAC_SHA1, 60);
+        cache.remove(a.getHandle());
+        assertNull(cache.load(a.getHandle()));
+        assertNull(base.load(a.getHandle()));
+    }
+
+    /**
+     * A load that started before a removal mustn't put the removed association back into the cache.
+     */
+    @Test
+    public void removeDuringLoadIsNotUndone() throws Exception {
+        final Association a = base.generate(Association.TYPE_HMAC_SHA1, 60);
+        base.block = new CountDownLatch(1);
+        base.blocked = new CountDownLatch(1);
+
+        Thread loader = new Thread() {
+            public void run() {
+                cache.load(a.getHandle());
+            }
+        };
+        loader.start();
+        base.blocked.await();       // the loader got the association from the underlying store
+        cache.remove(a.getHandle());
+        base.block.countDown();
+        loader.join();
+
+        base.block = null;
+        assertNull(cache.load(a.getHandle()));
+    }
+
+    private static final class CountingStore implements ServerAssociationStore {
+        private final ServerAssociationStore store = new InMemoryServerAssociationStore();
+        final AtomicInteger loads = new AtomicInteger();
+        volatile CountDownLatch block, blocked;
+
+        public Association generate(String type, int expiryIn) throws AssociationException {
+            return store.generate(type, expiryIn);
+        }
+
+        public Association load(String handle) {
+            loads.incrementAndGet();
+            Association a = store.load(handle);
+            CountDownLatch b = block;
+            if (b!=null) {
+                blocked.countDown();
+                try {
+                    b.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            return a;
+        }
+
+        public void remove(String handle) {
+            store.remove(handle);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.junit.Test;
+import org.openid4java.message.ParameterList;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ContinuationTokenTest {
+    private final ContinuationToken tokens = new ContinuationToken(secret(1), 60000);
+
+    @Test
+    public void roundTrip() {
+        Map<String,String> params = checkid("http://rp.example.org/finishLogin?from=%2F");
+        assertEquals(params, tokens.decode(tokens.encode(new ParameterList(params))));
+    }
+
+    @Test
+    public void longReturnTo() {
+        // well over the 64KB that DataOutput.writeUTF can handle, with multi-byte characters
+        StringBuilder buf = new StringBuilder("http://rp.example.org/finishLogin?from=");
+        while (buf.length()<100000)
+            buf.append("%2F\u00e9\u65e5");
+        Map<String,String> params = checkid(buf.toString());
+        assertEquals(params, tokens.decode(tokens.encode(new ParameterList(params))));
+    }
+
+    @Test
+    public void tamperedOrForeignTokensAreRejected() {
+        String t = tokens.encode(new ParameterList(checkid("http://rp.example.org/")));
+        assertNull(new ContinuationToken(secret(2), 60000).decode(t));
+
+        char[] c = t.toCharArray();
+        c[5] = c[5]=='A' ? 'B' : 'A';
+        assertNull(tokens.decode(new String(c)));
+
+        assertNull(tokens.decode("garbage"));
+        assertNull(tokens.decode(null));
+    }
+
+    @Test
+    public void expiredTokenIsRejected() {
+        ContinuationToken expired = new ContinuationToken(secret(1), -1);
+        assertNull(expired.decode(expired.encode(new ParameterList(checkid("http://rp.example.org/")))));
+    }
+
+    private static Map<String,String> checkid(String returnTo) {
+        Map<String,String> m = new HashMap<String,String>();
+        m.put("openid.ns", "http://specs.openid.net/auth/2.0");
+        m.put("openid.mode", "checkid_setup");
+        m.put("openid.return_to", returnTo);
+        return m;
+    }
+
+    private static byte[] secret(int seed) {
+        byte[] s = new byte[32];
+        Arrays.fill(s, (byte)seed);
+        return s;
+    }
+}
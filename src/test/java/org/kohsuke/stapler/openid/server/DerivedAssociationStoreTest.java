@@ -0,0 +1,108 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.ParameterList;
+import org.openid4java.server.InMemoryServerAssociationStore;
+import org.openid4java.server.ServerManager;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class DerivedAssociationStoreTest {
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private OpenIDServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new OpenIDServer(new URL("http://op.example.com/")) {
+            @Override
+            protected Session createSession() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        server.setAssociationStores(new InMemoryServerAssociationStore(), new DerivedAssociationStore(SECRET));
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void assertionCanOnlyBeVerifiedOnce() throws Exception {
+        ParameterList check = checkAuthentication(statelessAssertion());
+        assertEquals("true", isValid(check));
+        assertEquals("replay", "false", isValid(check));
+    }
+
+    @Test
+    public void otherAssertionsStillVerify() throws Exception {
+        ParameterList first = checkAuthentication(statelessAssertion());
+        ParameterList second = checkAuthentication(statelessAssertion());
+        assertEquals("true", isValid(first));
+        assertEquals("true", isValid(second));
+    }
+
+    @Test
+    public void forgottenHandlesAreStillRejected() throws Exception {
+        DerivedAssociationStore store = new DerivedAssociationStore(SECRET);
+        store.setMaxRemembered(2);
+        Association[] a = new Association[4];
+        for (int i=0; i<a.length; i++)
+            a[i] = store.generate(Association.TYPE_HMAC_SHA256, 60*(i+1));
+
+        store.remove(a[0].getHandle());
+        store.remove(a[1].getHandle());
+        store.remove(a[2].getHandle());     // pushes a[0] out
+        for (int i=0; i<3; i++)
+            assertNull(store.load(a[i].getHandle()));
+        assertNotNull("expires later than anything forgotten", store.load(a[3].getHandle()));
+    }
+
+    /**
+     * Signs a positive assertion with a private association, the way {@link Session} does for a stateless RP.
+     */
+    private AuthSuccess statelessAssertion() throws Exception {
+        Map<String,String> m = new HashMap<String,String>();
+        m.put("openid.ns", "http://specs.openid.net/auth/2.0");
+        m.put("openid.mode", "checkid_setup");
+        m.put("openid.claimed_id", "http://specs.openid.net/auth/2.0/identifier_select");
+        m.put("openid.identity", "http://specs.openid.net/auth/2.0/identifier_select");
+        m.put("openid.realm", "http://rp.example.org/");
+        m.put("openid.return_to", "http://rp.example.org/finishLogin");
+        AuthRequest authReq = AuthRequest.createAuthRequest(new ParameterList(m), server.manager.getRealmVerifier());
+
+        String openId = "http://op.example.com/alice";
+        ServerManager manager = server.manager;
+        Message rsp = manager.authResponse(authReq, openId, openId, true, manager.getOPEndpointUrl(), false);
+        assertTrue(rsp.keyValueFormEncoding(), rsp instanceof AuthSuccess);
+        server.macs.sign((AuthSuccess)rsp);
+        return (AuthSuccess)rsp;
+    }
+
+    private String isValid(ParameterList checkAuthentication) {
+        return server.macs.verify(checkAuthentication).getParameterValue("is_valid");
+    }
+
+    /**
+     * The "check_authentication" request that the RP sends for the given assertion.
+     */
+    private static ParameterList checkAuthentication(AuthSuccess assertion) {
+        Map<String,String> m = new HashMap<String,String>(assertion.getParameterMap());
+        m.put("openid.mode", "check_authentication");
+        return new ParameterList(m);
+    }
+}
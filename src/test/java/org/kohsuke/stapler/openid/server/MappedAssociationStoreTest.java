@@ -0,0 +1,114 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class MappedAssociationStoreTest {
+    private File file;
+    private MappedAssociationStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("associations", ".dat");
+        store = new MappedAssociationStore(file, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (store!=null)
+            store.close();
+        file.delete();
+    }
+
+    @Test
+    public void associationsSurviveReopen() throws Exception {
+        Association a = store.generate(Association.TYPE_HMAC_SHA256, 600);
+        Association b = store.generate(Association.TYPE_HMAC_SHA1, 600);
+        reopen();
+
+        Association x = store.load(a.getHandle());
+        assertNotNull(x);
+        assertEquals(a.getType(), x.getType());
+        assertArrayEquals(a.getMacKey().getEncoded(), x.getMacKey().getEncoded());
+        assertEquals(a.getExpiry(), x.getExpiry());
+        assertEquals(b.getType(), store.load(b.getHandle()).getType());
+    }
+
+    @Test
+    public void removedAndExpiredSlotsAreReused() throws Exception {
+        Association[] a = new Association[4];
+        for (int i=0; i<a.length; i++)
+            a[i] = store.generate(Association.TYPE_HMAC_SHA1, i==0 ? -1 : 600);
+        store.generate(Association.TYPE_HMAC_SHA1, 600);   // reclaims the expired one
+        try {
+            store.generate(Association.TYPE_HMAC_SHA1, 600);
+            fail("all the slots should be in use");
+        } catch (AssociationException e) {
+            // expected
+        }
+
+        store.remove(a[1].getHandle());
+        assertNull(store.load(a[1].getHandle()));
+        assertNotNull(store.generate(Association.TYPE_HMAC_SHA1, 600));
+    }
+
+    @Test
+    public void corruptedSlotsAreTreatedAsEmpty() throws Exception {
+        Association a = store.generate(Association.TYPE_HMAC_SHA1, 600);
+        Association b = store.generate(Association.TYPE_HMAC_SHA1, 600);
+        store.close();
+        store = null;
+
+        // garbage in the length bytes of both slots
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(1);
+            raf.write(-5);
+            raf.seek(SLOT_SIZE+2+32);
+            raf.write(100);
+        } finally {
+            raf.close();
+        }
+
+        reopen();
+        assertNull(store.load(a.getHandle()));
+        assertNull(store.load(b.getHandle()));
+        for (int i=0; i<4; i++)
+            store.generate(Association.TYPE_HMAC_SHA1, 600);
+    }
+
+    @Test
+    public void fileCanOnlyBeUsedByOneInstance() throws Exception {
+        try {
+            new MappedAssociationStore(file, 4);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        store.close();
+        store = new MappedAssociationStore(file, 4);
+    }
+
+    private void reopen() throws IOException {
+        if (store!=null)
+            store.close();
+        store = new MappedAssociationStore(file, 4);
+    }
+
+    /**
+     * type, handle length, handle, key length, key, expiry.
+     */
+    private static final int SLOT_SIZE = 1+1+32+1+32+8;
+}
@@ -0,0 +1,94 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ReplicatedAssociationStoreTest {
+    private ReplicatedAssociationStore a, b;
+
+    @Before
+    public void setUp() throws Exception {
+        a = new ReplicatedAssociationStore(loopback(), secret(1));
+        b = new ReplicatedAssociationStore(loopback(), secret(1));
+        a.addPeer(b.getLocalAddress());
+        b.addPeer(a.getLocalAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void generatedAssociationIsVisibleOnPeerRightAway() throws Exception {
+        Association x = a.generate(Association.TYPE_HMAC_SHA256, 60);
+
+        Association y = b.load(x.getHandle());
+        assertNotNull(y);
+        assertEquals(x.getType(), y.getType());
+        assertArrayEquals(x.getMacKey().getEncoded(), y.getMacKey().getEncoded());
+        assertEquals(x.getExpiry(), y.getExpiry());
+    }
+
+    @Test
+    public void removalIsReplicated() throws Exception {
+        Association x = b.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertNotNull(a.load(x.getHandle()));
+
+        a.remove(x.getHandle());
+        assertNull(a.load(x.getHandle()));
+        assertNull(b.load(x.getHandle()));
+    }
+
+    @Test
+    public void updatesFromNodeWithAnotherSecretAreDropped() throws Exception {
+        ReplicatedAssociationStore intruder = new ReplicatedAssociationStore(loopback(), secret(2));
+        try {
+            intruder.addPeer(a.getLocalAddress());
+            Association x = intruder.generate(Association.TYPE_HMAC_SHA1, 60);
+            assertNull(a.load(x.getHandle()));
+
+            Association y = b.generate(Association.TYPE_HMAC_SHA1, 60);
+            intruder.remove(y.getHandle());     // not known to the intruder, so nothing is sent
+            assertNotNull(a.load(y.getHandle()));
+
+            // the connection survives the rejected update
+            Association z = b.generate(Association.TYPE_HMAC_SHA1, 60);
+            assertNotNull(a.load(z.getHandle()));
+        } finally {
+            intruder.close();
+        }
+    }
+
+    @Test
+    public void closeStopsReceiving() throws Exception {
+        Association x = a.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertNotNull(b.load(x.getHandle()));
+
+        b.close();
+        Association y = a.generate(Association.TYPE_HMAC_SHA1, 60);
+        assertNull(b.load(y.getHandle()));
+    }
+
+    private static InetSocketAddress loopback() throws Exception {
+        return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+    private static byte[] secret(int seed) {
+        byte[] s = new byte[32];
+        Arrays.fill(s, (byte)seed);
+        return s;
+    }
+}
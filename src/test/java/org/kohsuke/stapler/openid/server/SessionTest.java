@@ -0,0 +1,139 @@
+package org.kohsuke.stapler.openid.server;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class SessionTest {
+    private OpenIDServer server;
+    private Session session;
+    private int logins;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new OpenIDServer(new URL("http://op.example.com/")) {
+            @Override
+            protected Session createSession() {
+                return new Session(this) {
+                    @Override
+                    protected HttpResponse authenticateUser(OpenIDIdentity id) {
+                        logins++;
+                        id.withNick("alice");
+                        return null;
+                    }
+                };
+            }
+        };
+        session = server.createSession();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void positiveAssertion() throws Exception {
+        String url = redirectOf(doEntryPoint(checkid("http://rp.example.org/", "http://rp.example.org/finishLogin")));
+        assertTrue(url, url.startsWith("http://rp.example.org/finishLogin?"));
+        assertTrue(url, URLDecoder.decode(url, "UTF-8").contains("openid.mode=id_res"));
+        assertEquals(1, logins);
+    }
+
+    @Test
+    public void realmMismatchIsReportedToReturnTo() throws Exception {
+        String url = redirectOf(doEntryPoint(checkid("http://rp.example.org/", "http://other.example.net/finishLogin")));
+        assertTrue(url, url.startsWith("http://other.example.net/finishLogin?"));
+        assertTrue(url, URLDecoder.decode(url, "UTF-8").contains("openid.mode=error"));
+        assertEquals("the user shouldn't be asked to log in for a bad request", 0, logins);
+    }
+
+    @Test
+    public void badRequestWithoutReturnToGetsDirectError() throws Exception {
+        String body = bodyOf(doEntryPoint(checkid("http://rp.example.org/", null)));
+        assertTrue(body, body.startsWith("error:"));
+        assertEquals(0, logins);
+    }
+
+    private static Map<String,String> checkid(String realm, String returnTo) {
+        Map<String,String> m = new HashMap<String,String>();
+        m.put("openid.ns", "http://specs.openid.net/auth/2.0");
+        m.put("openid.mode", "checkid_setup");
+        m.put("openid.claimed_id", "http://specs.openid.net/auth/2.0/identifier_select");
+        m.put("openid.identity", "http://specs.openid.net/auth/2.0/identifier_select");
+        m.put("openid.realm", realm);
+        if (returnTo!=null)
+            m.put("openid.return_to", returnTo);
+        return m;
+    }
+
+    private HttpResponse doEntryPoint(Map<String,String> params) throws Exception {
+        return session.doEntryPoint(request(params));
+    }
+
+    private static String redirectOf(HttpResponse r) throws Exception {
+        final String[] location = new String[1];
+        r.generateResponse(null, response(new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("sendRedirect"))
+                    location[0] = (String)args[args.length-1];
+                return null;
+            }
+        }), null);
+        assertNotNull("expected a redirect", location[0]);
+        return location[0];
+    }
+
+    private static String bodyOf(HttpResponse r) throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        };
+        r.generateResponse(null, response(new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getOutputStream"))
+                    return out;
+                if (method.getName().equals("sendRedirect"))
+                    fail("unexpected redirect to "+args[args.length-1]);
+                return null;
+            }
+        }), null);
+        return body.toString("UTF-8");
+    }
+
+    private static StaplerRequest request(final Map<String,String> params) {
+        return (StaplerRequest)Proxy.newProxyInstance(SessionTest.class.getClassLoader(), new Class<?>[]{StaplerRequest.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getParameterMap"))
+                        return params;
+                    return null;
+                }
+            });
+    }
+
+    private static StaplerResponse response(InvocationHandler h) {
+        return (StaplerResponse)Proxy.newProxyInstance(SessionTest.class.getClassLoader(), new Class<?>[]{StaplerResponse.class}, h);
+    }
+}